@@ -0,0 +1,184 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.redpill.alfresco.numbering.cache.CacheStatistics;
+import org.redpill.alfresco.numbering.cache.LocalCounterCache;
+import org.redpill.alfresco.numbering.component.NumberingComponentImpl;
+import org.redpill.alfresco.numbering.decorator.Decorator;
+import org.redpill.alfresco.numbering.lock.CounterLock;
+import org.redpill.alfresco.numbering.storage.AttributeNumberingStorageImpl;
+import org.redpill.alfresco.numbering.storage.BlockNumberingStorageImpl;
+import org.redpill.alfresco.numbering.storage.CoalescingNumberingStorageImpl;
+import org.redpill.alfresco.numbering.storage.NodeNumberingStorageImpl;
+import org.redpill.alfresco.numbering.storage.NumberingStorage;
+
+/**
+ * Wires the numbering beans the way the Spring context does, against
+ * in-memory stand-ins for the Alfresco services
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class BenchmarkRepository {
+
+  public static final String STORAGE_NODE = "node";
+  public static final String STORAGE_NODE_FAST = "node-fast";
+  public static final String STORAGE_ATTRIBUTE = "attribute";
+  public static final String STORAGE_BLOCK = "block";
+  public static final String STORAGE_COALESCING = "coalescing";
+
+  protected final NodeService nodeService = InMemoryNodeService.create();
+  protected final NamespaceService namespaceService = StandIns.namespaceService();
+  protected final DictionaryService dictionaryService = StandIns.dictionaryService(ContentModel.TYPE_CMOBJECT);
+  protected final BehaviourFilter behaviourFilter = StandIns.behaviourFilter();
+  protected final JobLockService jobLockService = StandIns.jobLockService();
+  protected final InMemoryRetryingTransactionHelper retryingTransactionHelper = new InMemoryRetryingTransactionHelper();
+  protected final NodeRef rootHome;
+  protected final NodeRef dataDictionary;
+  protected final Repository repositoryHelper;
+
+  /**
+   * @param commitLatencyMicros the simulated commit latency of write
+   * transactions in microseconds
+   */
+  public BenchmarkRepository(long commitLatencyMicros) {
+    retryingTransactionHelper.setCommitLatencyMicros(commitLatencyMicros);
+    rootHome = InMemoryNodeService.createNode(nodeService, null, "root", ContentModel.TYPE_FOLDER);
+    NodeRef companyHome = InMemoryNodeService.createNode(nodeService, rootHome, "Company Home", ContentModel.TYPE_FOLDER);
+    dataDictionary = InMemoryNodeService.createNode(nodeService, companyHome, "Data Dictionary", ContentModel.TYPE_FOLDER);
+    repositoryHelper = StandIns.repository(rootHome);
+  }
+
+  public NodeService getNodeService() {
+    return nodeService;
+  }
+
+  /**
+   * Create a document node to number
+   *
+   * @param name the name of the node
+   * @return NodeRef
+   */
+  public NodeRef createDocument(String name) {
+    return createNode(name, ContentModel.TYPE_CONTENT);
+  }
+
+  /**
+   * Create a node of the given type
+   *
+   * @param name the name of the node
+   * @param type the type of the node
+   * @return NodeRef
+   */
+  public NodeRef createNode(String name, QName type) {
+    return InMemoryNodeService.createNode(nodeService, rootHome, name, type);
+  }
+
+  /**
+   * Create a storage by name
+   *
+   * @param storage one of node, node-fast, attribute, block or coalescing
+   * @return NumberingStorage
+   * @throws Exception if the storage could not be initialized
+   */
+  public NumberingStorage createStorage(String storage) throws Exception {
+    switch (storage) {
+      case STORAGE_NODE:
+        return createNodeStorage();
+      case STORAGE_NODE_FAST: {
+        NodeNumberingStorageImpl nodeStorage = createNodeStorage();
+        nodeStorage.setNodeDAO(StandIns.nodeDAO(nodeService));
+        nodeStorage.setFastPath(true);
+        nodeStorage.afterPropertiesSet();
+        return nodeStorage;
+      }
+      case STORAGE_ATTRIBUTE:
+        return createAttributeStorage();
+      case STORAGE_BLOCK: {
+        BlockNumberingStorageImpl blockStorage = new BlockNumberingStorageImpl();
+        blockStorage.setNumberingStorage(createNodeStorage());
+        blockStorage.afterPropertiesSet();
+        return blockStorage;
+      }
+      case STORAGE_COALESCING: {
+        CoalescingNumberingStorageImpl coalescingStorage = new CoalescingNumberingStorageImpl();
+        coalescingStorage.setNumberingStorage(createNodeStorage());
+        coalescingStorage.afterPropertiesSet();
+        return coalescingStorage;
+      }
+      default:
+        throw new IllegalArgumentException("Unknown storage " + storage);
+    }
+  }
+
+  protected NodeNumberingStorageImpl createNodeStorage() throws Exception {
+    CacheStatistics counterCacheStatistics = new CacheStatistics();
+    LocalCounterCache counterCache = new LocalCounterCache();
+    counterCache.setStatistics(counterCacheStatistics);
+    counterCache.afterPropertiesSet();
+
+    CounterLock counterLock = new CounterLock();
+    counterLock.afterPropertiesSet();
+
+    NodeNumberingStorageImpl nodeStorage = new NodeNumberingStorageImpl();
+    nodeStorage.setNodeService(nodeService);
+    nodeStorage.setNamespaceService(namespaceService);
+    nodeStorage.setSearchService(StandIns.searchService(dataDictionary));
+    nodeStorage.setRepositoryHelper(repositoryHelper);
+    nodeStorage.setRetryingTransactionHelper(retryingTransactionHelper);
+    nodeStorage.setBehaviourFilter(behaviourFilter);
+    nodeStorage.setJobLockService(jobLockService);
+    nodeStorage.setContainerCache(StandIns.<String, NodeRef>simpleCache());
+    nodeStorage.setCounterCache(counterCache);
+    nodeStorage.setCounterLock(counterLock);
+    nodeStorage.afterPropertiesSet();
+    return nodeStorage;
+  }
+
+  protected AttributeNumberingStorageImpl createAttributeStorage() throws Exception {
+    AttributeNumberingStorageImpl attributeStorage = new AttributeNumberingStorageImpl();
+    attributeStorage.setAttributeService(StandIns.attributeService());
+    attributeStorage.setJobLockService(jobLockService);
+    attributeStorage.setRetryingTransactionHelper(retryingTransactionHelper);
+    attributeStorage.setLockRetryWait(1);
+    attributeStorage.setLockRetryCount(100000);
+    attributeStorage.afterPropertiesSet();
+    return attributeStorage;
+  }
+
+  /**
+   * Create a numbering component bound to cm:content, ignoring folders,
+   * temporary nodes and working copies
+   *
+   * @param numberingStorage the storage of the component
+   * @param decorator the decorator of the component
+   * @return NumberingComponentImpl
+   * @throws Exception if the component could not be initialized
+   */
+  public NumberingComponentImpl createComponent(NumberingStorage numberingStorage, Decorator decorator) throws Exception {
+    NumberingComponentImpl component = new NumberingComponentImpl();
+    component.setId("benchmark");
+    component.setNodeService(nodeService);
+    component.setRepositoryHelper(repositoryHelper);
+    component.setDictionaryService(dictionaryService);
+    component.setDictionaryDAO(StandIns.dictionaryDAO());
+    component.setNamespaceService(namespaceService);
+    component.setBindTypes(Collections.singletonList("cm:content"));
+    component.setIgnoreTypes(Collections.singletonList("cm:folder"));
+    component.setIgnoreAspects(Arrays.asList("sys:temporary", "cm:workingcopy"));
+    component.setNumberingStorage(numberingStorage);
+    component.setDecorator(decorator);
+    component.afterPropertiesSet();
+    return component;
+  }
+
+}
@@ -0,0 +1,74 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.redpill.alfresco.numbering.component.NumberingComponentImpl;
+import org.redpill.alfresco.numbering.decorator.PrefixDecorator;
+
+/**
+ * Cost of the numbering component hot path, the type and aspect checks of
+ * allowGetNextNumber and a complete getDecoratedNextNumber
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComponentBenchmark {
+
+  private NumberingComponentImpl component;
+  private NodeRef document;
+  private NodeRef temporaryDocument;
+  private NodeRef folder;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    BenchmarkRepository repository = new BenchmarkRepository(0);
+    PrefixDecorator decorator = new PrefixDecorator();
+    decorator.setPrefix("DOC");
+    decorator.setPrefixSeparator("-");
+    decorator.setZeroPadding(6);
+    component = repository.createComponent(repository.createStorage(BenchmarkRepository.STORAGE_NODE), decorator);
+    document = repository.createDocument("document");
+    temporaryDocument = repository.createDocument("temporary");
+    repository.getNodeService().addAspect(temporaryDocument, ContentModel.ASPECT_TEMPORARY, null);
+    folder = repository.createNode("folder", ContentModel.TYPE_FOLDER);
+  }
+
+  @Benchmark
+  public boolean allowGetNextNumber() {
+    return component.allowGetNextNumber(document);
+  }
+
+  @Benchmark
+  public boolean allowGetNextNumberIgnoredAspect() {
+    return component.allowGetNextNumber(temporaryDocument);
+  }
+
+  @Benchmark
+  public boolean allowGetNextNumberWrongType() {
+    return component.allowGetNextNumber(folder);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public String getDecoratedNextNumber() {
+    return component.getDecoratedNextNumber(document);
+  }
+
+}
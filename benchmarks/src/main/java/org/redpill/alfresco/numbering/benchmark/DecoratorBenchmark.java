@@ -0,0 +1,109 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.redpill.alfresco.numbering.decorator.BasicDecorator;
+import org.redpill.alfresco.numbering.decorator.CurrentDatePrefixDecorator;
+import org.redpill.alfresco.numbering.decorator.Decorator;
+import org.redpill.alfresco.numbering.decorator.PatternDecorator;
+import org.redpill.alfresco.numbering.decorator.PrefixDecorator;
+
+/**
+ * Cost of formatting numbers with the decorators
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoratorBenchmark {
+
+  private static final int RANGE_SIZE = 100;
+
+  @Param({"basic", "prefix", "currentDatePrefix", "pattern"})
+  public String decorator;
+
+  @Param({"0", "6"})
+  public int zeroPadding;
+
+  private Decorator numberDecorator;
+  private NodeRef nodeRef;
+  private List<NodeRef> nodeRefs;
+  private long number = 1;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    BenchmarkRepository repository = new BenchmarkRepository(0);
+    nodeRef = repository.createDocument("document");
+    nodeRefs = new ArrayList<>(RANGE_SIZE);
+    for (int i = 0; i < RANGE_SIZE; i++) {
+      nodeRefs.add(repository.createDocument("document-" + i));
+    }
+    switch (decorator) {
+      case "basic": {
+        BasicDecorator basicDecorator = new BasicDecorator();
+        basicDecorator.setZeroPadding(zeroPadding);
+        numberDecorator = basicDecorator;
+        break;
+      }
+      case "prefix": {
+        PrefixDecorator prefixDecorator = new PrefixDecorator();
+        prefixDecorator.setZeroPadding(zeroPadding);
+        prefixDecorator.setPrefix("DOC");
+        prefixDecorator.setPrefixSeparator("-");
+        numberDecorator = prefixDecorator;
+        break;
+      }
+      case "currentDatePrefix": {
+        CurrentDatePrefixDecorator datePrefixDecorator = new CurrentDatePrefixDecorator();
+        datePrefixDecorator.setZeroPadding(zeroPadding);
+        datePrefixDecorator.setDatePattern("yyyy");
+        datePrefixDecorator.setPrefixSeparator("-");
+        numberDecorator = datePrefixDecorator;
+        break;
+      }
+      case "pattern": {
+        PatternDecorator patternDecorator = new PatternDecorator();
+        patternDecorator.setPattern("{yyyy}-{prefix}-{seq:0" + zeroPadding + "}");
+        patternDecorator.setPrefix("DOC");
+        patternDecorator.afterPropertiesSet();
+        numberDecorator = patternDecorator;
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("Unknown decorator " + decorator);
+    }
+  }
+
+  @Benchmark
+  public String decorate() {
+    return numberDecorator.decorate(number++, nodeRef);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Map<NodeRef, String> decorateRange() {
+    Map<NodeRef, String> result = numberDecorator.decorate(number, nodeRefs);
+    number += RANGE_SIZE;
+    return result;
+  }
+
+}
@@ -0,0 +1,205 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * In-memory stand-in for the node service, implementing the methods used by
+ * the numbering module. Other methods throw UnsupportedOperationException.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class InMemoryNodeService implements InvocationHandler {
+
+  private final Map<NodeRef, Node> nodes = new ConcurrentHashMap<>();
+
+  private static class Node {
+
+    private final QName type;
+    private final NodeRef parent;
+    private final Map<QName, Serializable> properties = new ConcurrentHashMap<>();
+    private final Set<QName> aspects = ConcurrentHashMap.newKeySet();
+    private final Map<String, ChildAssociationRef> children = new ConcurrentHashMap<>();
+
+    private Node(QName type, NodeRef parent) {
+      this.type = type;
+      this.parent = parent;
+    }
+  }
+
+  /**
+   * @return a node service backed by a new, empty in-memory store
+   */
+  public static NodeService create() {
+    return (NodeService) Proxy.newProxyInstance(NodeService.class.getClassLoader(), new Class<?>[]{NodeService.class}, new InMemoryNodeService());
+  }
+
+  /**
+   * Create a node directly in the store, used to set up fixtures
+   *
+   * @param nodeService a node service created by this class
+   * @param parent the parent node or null for a root node
+   * @param name the name of the node
+   * @param type the type of the node
+   * @return NodeRef
+   */
+  public static NodeRef createNode(NodeService nodeService, NodeRef parent, String name, QName type) {
+    NodeRef nodeRef;
+    if (parent == null) {
+      InMemoryNodeService handler = (InMemoryNodeService) Proxy.getInvocationHandler(nodeService);
+      nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, UUID.randomUUID().toString());
+      handler.nodes.put(nodeRef, new Node(type, null));
+    } else {
+      nodeRef = nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS, QName.createQName(name), type).getChildRef();
+    }
+    nodeService.setProperty(nodeRef, ContentModel.PROP_NAME, name);
+    return nodeRef;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "exists":
+        return nodes.containsKey((NodeRef) args[0]);
+      case "getType":
+        return node(args[0]).type;
+      case "getAspects":
+        return new HashSet<>(node(args[0]).aspects);
+      case "hasAspect":
+        return node(args[0]).aspects.contains((QName) args[1]);
+      case "addAspect":
+        node(args[0]).aspects.add((QName) args[1]);
+        if (args[2] != null) {
+          node(args[0]).properties.putAll((Map<QName, Serializable>) args[2]);
+        }
+        return null;
+      case "getProperty":
+        return node(args[0]).properties.get((QName) args[1]);
+      case "getProperties":
+        return new HashMap<>(node(args[0]).properties);
+      case "setProperty":
+        setProperty((NodeRef) args[0], (QName) args[1], (Serializable) args[2]);
+        return null;
+      case "addProperties":
+        for (Map.Entry<QName, Serializable> entry : ((Map<QName, Serializable>) args[1]).entrySet()) {
+          setProperty((NodeRef) args[0], entry.getKey(), entry.getValue());
+        }
+        return null;
+      case "createNode":
+        return createChild((NodeRef) args[0], (QName) args[1], (QName) args[2], (QName) args[3]);
+      case "getChildByName": {
+        ChildAssociationRef childAssoc = node(args[0]).children.get((String) args[2]);
+        return childAssoc == null ? null : childAssoc.getChildRef();
+      }
+      case "getChildAssocs":
+        return new ArrayList<>(node(args[0]).children.values());
+      case "moveNode":
+        return moveNode((NodeRef) args[0], (NodeRef) args[1], (QName) args[2], (QName) args[3]);
+      case "deleteNode":
+        deleteNode((NodeRef) args[0]);
+        return null;
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      case "toString":
+        return "InMemoryNodeService";
+      default:
+        throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  private Node node(Object nodeRef) {
+    Node node = nodes.get((NodeRef) nodeRef);
+    if (node == null) {
+      throw new InvalidNodeRefException((NodeRef) nodeRef);
+    }
+    return node;
+  }
+
+  private void setProperty(NodeRef nodeRef, QName property, Serializable value) {
+    Node node = node(nodeRef);
+    if (ContentModel.PROP_NAME.equals(property) && node.parent != null) {
+      Node parent = node(node.parent);
+      Serializable oldName = node.properties.get(ContentModel.PROP_NAME);
+      if (oldName != null) {
+        parent.children.remove(oldName.toString());
+      }
+      parent.children.put(value.toString(), new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, node.parent, QName.createQName(value.toString()), nodeRef));
+    }
+    if (value == null) {
+      node.properties.remove(property);
+    } else {
+      node.properties.put(property, value);
+    }
+  }
+
+  private ChildAssociationRef createChild(NodeRef parent, QName assocType, QName assocQName, QName type) {
+    node(parent);
+    NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, UUID.randomUUID().toString());
+    nodes.put(nodeRef, new Node(type, parent));
+    return new ChildAssociationRef(assocType, parent, assocQName, nodeRef);
+  }
+
+  private ChildAssociationRef moveNode(NodeRef nodeRef, NodeRef newParent, QName assocType, QName assocQName) {
+    Node node = node(nodeRef);
+    Map<QName, Serializable> properties = new HashMap<>(node.properties);
+    Set<QName> aspects = new HashSet<>(node.aspects);
+    Map<String, ChildAssociationRef> children = new HashMap<>(node.children);
+    deleteNode(nodeRef);
+    Node moved = new Node(node.type, newParent);
+    moved.aspects.addAll(aspects);
+    moved.children.putAll(children);
+    nodes.put(nodeRef, moved);
+    for (Map.Entry<QName, Serializable> entry : properties.entrySet()) {
+      setProperty(nodeRef, entry.getKey(), entry.getValue());
+    }
+    return new ChildAssociationRef(assocType, newParent, assocQName, nodeRef);
+  }
+
+  private void deleteNode(NodeRef nodeRef) {
+    Node node = nodes.remove(nodeRef);
+    if (node != null && node.parent != null) {
+      Serializable name = node.properties.get(ContentModel.PROP_NAME);
+      Node parent = nodes.get(node.parent);
+      if (name != null && parent != null) {
+        parent.children.remove(name.toString());
+      }
+    }
+  }
+
+  /**
+   * @param nodeService a node service created by this class
+   * @return the number of nodes in the store
+   */
+  public static int size(NodeService nodeService) {
+    return ((InMemoryNodeService) Proxy.getInvocationHandler(nodeService)).nodes.size();
+  }
+
+  /**
+   * @param nodeService a node service created by this class
+   * @return all nodes in the store
+   */
+  public static List<NodeRef> nodeRefs(NodeService nodeService) {
+    return new ArrayList<>(((InMemoryNodeService) Proxy.getInvocationHandler(nodeService)).nodes.keySet());
+  }
+
+}
@@ -0,0 +1,75 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.util.concurrent.locks.LockSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Retrying transaction helper without a database. A new transaction retries
+ * its callback on concurrency failures and can simulate the commit latency of
+ * a database by parking the thread before returning. Joined transactions run
+ * the callback directly.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class InMemoryRetryingTransactionHelper extends RetryingTransactionHelper {
+
+  private static final ThreadLocal<Boolean> IN_TRANSACTION = new ThreadLocal<>();
+
+  protected int maxRetries = 20;
+  protected long commitLatencyNanos = 0;
+
+  @Override
+  public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew) {
+    Boolean outer = IN_TRANSACTION.get();
+    if (outer != null && !requiresNew) {
+      return execute(cb);
+    }
+    IN_TRANSACTION.set(Boolean.TRUE);
+    try {
+      for (int retry = 0;; retry++) {
+        try {
+          R result = execute(cb);
+          if (!readOnly && commitLatencyNanos > 0) {
+            LockSupport.parkNanos(commitLatencyNanos);
+          }
+          return result;
+        } catch (ConcurrencyFailureException e) {
+          if (retry >= maxRetries) {
+            throw e;
+          }
+        }
+      }
+    } finally {
+      if (outer == null) {
+        IN_TRANSACTION.remove();
+      } else {
+        IN_TRANSACTION.set(outer);
+      }
+    }
+  }
+
+  private <R> R execute(RetryingTransactionCallback<R> cb) {
+    try {
+      return cb.execute();
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+  }
+
+  /**
+   * @param commitLatencyMicros the simulated commit latency of write
+   * transactions in microseconds
+   */
+  public void setCommitLatencyMicros(long commitLatencyMicros) {
+    this.commitLatencyNanos = commitLatencyMicros * 1000;
+  }
+
+}
@@ -0,0 +1,294 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.dictionary.DictionaryDAO;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.AspectDefinition;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.dictionary.TypeDefinition;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+
+/**
+ * In-memory stand-ins for the Alfresco services used by the numbering module
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public final class StandIns {
+
+  private StandIns() {
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+  }
+
+  private static Object defaultValue(Class<?> returnType) {
+    if (returnType == boolean.class) {
+      return false;
+    } else if (returnType == int.class) {
+      return 0;
+    } else if (returnType == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  /**
+   * @return a behaviour filter which does nothing
+   */
+  public static BehaviourFilter behaviourFilter() {
+    return proxy(BehaviourFilter.class, (proxy, method, args) -> defaultValue(method.getReturnType()));
+  }
+
+  /**
+   * @return a namespace service resolving the cm, app and sys prefixes
+   */
+  public static NamespaceService namespaceService() {
+    final Map<String, String> namespaces = new HashMap<>();
+    namespaces.put(NamespaceService.CONTENT_MODEL_PREFIX, NamespaceService.CONTENT_MODEL_1_0_URI);
+    namespaces.put(NamespaceService.APP_MODEL_PREFIX, NamespaceService.APP_MODEL_1_0_URI);
+    namespaces.put(NamespaceService.SYSTEM_MODEL_PREFIX, NamespaceService.SYSTEM_MODEL_1_0_URI);
+    return proxy(NamespaceService.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getNamespaceURI":
+          return namespaces.get((String) args[0]);
+        case "getPrefixes":
+          if (args == null) {
+            return namespaces.keySet();
+          }
+          List<String> prefixes = new ArrayList<>();
+          for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+            if (entry.getValue().equals(args[0])) {
+              prefixes.add(entry.getKey());
+            }
+          }
+          return prefixes;
+        case "getURIs":
+          return namespaces.values();
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  /**
+   * Dictionary service where every type and aspect exists and every type is
+   * a sub class of the given base type
+   *
+   * @param baseType the common super type
+   * @return DictionaryService
+   */
+  public static DictionaryService dictionaryService(final QName baseType) {
+    final TypeDefinition typeDefinition = proxy(TypeDefinition.class, (proxy, method, args) -> defaultValue(method.getReturnType()));
+    final AspectDefinition aspectDefinition = proxy(AspectDefinition.class, (proxy, method, args) -> defaultValue(method.getReturnType()));
+    return proxy(DictionaryService.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getType":
+          return typeDefinition;
+        case "getAspect":
+          return aspectDefinition;
+        case "isSubClass":
+          return args[0].equals(args[1]) || baseType.equals(args[1]);
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  /**
+   * @return a dictionary DAO which never reloads, listeners are ignored
+   */
+  public static DictionaryDAO dictionaryDAO() {
+    return proxy(DictionaryDAO.class, (proxy, method, args) -> defaultValue(method.getReturnType()));
+  }
+
+  /**
+   * @param result the node returned by every select
+   * @return a search service which always finds the given node
+   */
+  public static SearchService searchService(final NodeRef result) {
+    return proxy(SearchService.class, (proxy, method, args) -> {
+      if ("selectNodes".equals(method.getName())) {
+        return Collections.singletonList(result);
+      }
+      return defaultValue(method.getReturnType());
+    });
+  }
+
+  /**
+   * @param rootHome the root node
+   * @return a repository helper returning the given root node
+   */
+  public static Repository repository(final NodeRef rootHome) {
+    return new Repository() {
+      @Override
+      public NodeRef getRootHome() {
+        return rootHome;
+      }
+
+      @Override
+      public NodeRef getCompanyHome() {
+        return rootHome;
+      }
+    };
+  }
+
+  /**
+   * @param <K> the key type
+   * @param <V> the value type
+   * @return a cache backed by a concurrent map
+   */
+  @SuppressWarnings("unchecked")
+  public static <K extends Serializable, V> SimpleCache<K, V> simpleCache() {
+    final ConcurrentMap<Object, Object> map = new ConcurrentHashMap<>();
+    return proxy(SimpleCache.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "contains":
+          return map.containsKey(args[0]);
+        case "getKeys":
+          return map.keySet();
+        case "get":
+          return map.get(args[0]);
+        case "put":
+          map.put(args[0], args[1]);
+          return null;
+        case "remove":
+          map.remove(args[0]);
+          return null;
+        case "clear":
+          map.clear();
+          return null;
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  /**
+   * Job lock service holding one local lock per lock name. Lock refreshes are
+   * ignored since locks never expire.
+   *
+   * @return JobLockService
+   */
+  public static JobLockService jobLockService() {
+    final ConcurrentMap<QName, Semaphore> locks = new ConcurrentHashMap<>();
+    return proxy(JobLockService.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getLock": {
+          Semaphore lock = locks.computeIfAbsent((QName) args[0], key -> new Semaphore(1));
+          if (args.length == 4) {
+            long retryWait = (Long) args[2];
+            int retryCount = (Integer) args[3];
+            for (int i = 0; i <= retryCount; i++) {
+              if (lock.tryAcquire(retryWait, TimeUnit.MILLISECONDS)) {
+                return UUID.randomUUID().toString();
+              }
+            }
+          } else if (lock.tryAcquire()) {
+            return UUID.randomUUID().toString();
+          }
+          throw new LockAcquisitionException("Could not acquire lock " + args[0]);
+        }
+        case "releaseLock":
+          locks.get((QName) args[1]).release();
+          return null;
+        case "releaseLockVerify":
+          locks.get((QName) args[1]).release();
+          return true;
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  /**
+   * Node DAO reading and writing the properties of an in-memory node service
+   * by node id
+   *
+   * @param nodeService a node service created by InMemoryNodeService
+   * @return NodeDAO
+   */
+  public static NodeDAO nodeDAO(final NodeService nodeService) {
+    final AtomicLong nextId = new AtomicLong();
+    final ConcurrentMap<NodeRef, Long> ids = new ConcurrentHashMap<>();
+    final ConcurrentMap<Long, NodeRef> nodeRefs = new ConcurrentHashMap<>();
+    return proxy(NodeDAO.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getNodePair": {
+          NodeRef nodeRef = (NodeRef) args[0];
+          if (!nodeService.exists(nodeRef)) {
+            return null;
+          }
+          Long id = ids.computeIfAbsent(nodeRef, key -> {
+            long newId = nextId.incrementAndGet();
+            nodeRefs.put(newId, key);
+            return newId;
+          });
+          return new Pair<>(id, nodeRef);
+        }
+        case "getNodeProperty":
+          return nodeService.getProperty(nodeRefs.get((Long) args[0]), (QName) args[1]);
+        case "addNodeProperty":
+          nodeService.setProperty(nodeRefs.get((Long) args[0]), (QName) args[1], (Serializable) args[2]);
+          return true;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  /**
+   * @return an attribute service backed by a concurrent map
+   */
+  public static AttributeService attributeService() {
+    final ConcurrentMap<List<Serializable>, Serializable> attributes = new ConcurrentHashMap<>();
+    return proxy(AttributeService.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "exists":
+          return attributes.containsKey(Arrays.asList((Serializable[]) args[0]));
+        case "getAttribute":
+          return attributes.get(Arrays.asList((Serializable[]) args[0]));
+        case "setAttribute":
+          attributes.put(Arrays.asList((Serializable[]) args[1]), (Serializable) args[0]);
+          return null;
+        case "createAttribute":
+          if (attributes.putIfAbsent(Arrays.asList((Serializable[]) args[1]), (Serializable) args[0]) != null) {
+            throw new IllegalStateException("Attribute exists " + Arrays.toString((Serializable[]) args[1]));
+          }
+          return null;
+        case "removeAttribute":
+          attributes.remove(Arrays.asList((Serializable[]) args[0]));
+          return null;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+}
@@ -0,0 +1,77 @@
+package org.redpill.alfresco.numbering.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.redpill.alfresco.numbering.storage.NumberingStorage;
+
+/**
+ * Throughput of getNextNumber on the storages, with one thread and with
+ * several threads incrementing the same counter. The commit latency simulates
+ * the round trip to the database, 0 measures the storage code only.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+  private static final String COUNTER_ID = "benchmark";
+  private static final String OPTION_VALUE = "benchmark-option";
+
+  @Param({BenchmarkRepository.STORAGE_NODE, BenchmarkRepository.STORAGE_NODE_FAST, BenchmarkRepository.STORAGE_ATTRIBUTE, BenchmarkRepository.STORAGE_BLOCK, BenchmarkRepository.STORAGE_COALESCING})
+  public String storage;
+
+  @Param({"0", "500"})
+  public long commitLatencyMicros;
+
+  private NumberingStorage numberingStorage;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    numberingStorage = new BenchmarkRepository(commitLatencyMicros).createStorage(storage);
+    //Create the counters outside of the measurement
+    numberingStorage.getNextNumber(1, COUNTER_ID);
+    numberingStorage.getNextNumber(1, COUNTER_ID, OPTION_VALUE);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long getNextNumber() {
+    return numberingStorage.getNextNumber(1, COUNTER_ID);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public long getNextNumberContended() {
+    return numberingStorage.getNextNumber(1, COUNTER_ID);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public long getNextOptionNumber() {
+    return numberingStorage.getNextNumber(1, COUNTER_ID, OPTION_VALUE);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public long getNextOptionNumberContended() {
+    return numberingStorage.getNextNumber(1, COUNTER_ID, OPTION_VALUE);
+  }
+
+}
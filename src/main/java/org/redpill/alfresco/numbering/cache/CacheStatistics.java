@@ -0,0 +1,57 @@
+package org.redpill.alfresco.numbering.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit and miss counters for a cache
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Record a lookup served from the cache
+   */
+  public void hit() {
+    hits.increment();
+  }
+
+  /**
+   * Record a lookup not served from the cache
+   */
+  public void miss() {
+    misses.increment();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.sum();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public double getHitRatio() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  @Override
+  public void reset() {
+    hits.reset();
+    misses.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + getHits() + ", misses=" + getMisses() + ", hitRatio=" + getHitRatio();
+  }
+
+}
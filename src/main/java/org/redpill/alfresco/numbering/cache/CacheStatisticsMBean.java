@@ -0,0 +1,29 @@
+package org.redpill.alfresco.numbering.cache;
+
+/**
+ * Management interface for cache statistics
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public interface CacheStatisticsMBean {
+
+  /**
+   * @return the number of lookups served from the cache
+   */
+  public long getHits();
+
+  /**
+   * @return the number of lookups not served from the cache
+   */
+  public long getMisses();
+
+  /**
+   * @return the share of lookups served from the cache, between 0 and 1
+   */
+  public double getHitRatio();
+
+  /**
+   * Reset the statistics
+   */
+  public void reset();
+}
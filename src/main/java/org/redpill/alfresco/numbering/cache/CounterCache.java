@@ -0,0 +1,41 @@
+package org.redpill.alfresco.numbering.cache;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Cache of counter nodes keyed by counter id. Implementations must be thread
+ * safe. Cached node refs are not validated on lookup, callers are expected to
+ * remove an entry when the node turns out to be gone.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public interface CounterCache {
+
+  /**
+   * Get a counter node from the cache
+   *
+   * @param key The counter key
+   * @return NodeRef or null if not cached
+   */
+  public NodeRef get(String key);
+
+  /**
+   * Put a counter node in the cache
+   *
+   * @param key The counter key
+   * @param nodeRef The counter node
+   */
+  public void put(String key, NodeRef nodeRef);
+
+  /**
+   * Remove a counter node from the cache
+   *
+   * @param key The counter key
+   */
+  public void remove(String key);
+
+  /**
+   * Remove all counter nodes from the cache
+   */
+  public void clear();
+}
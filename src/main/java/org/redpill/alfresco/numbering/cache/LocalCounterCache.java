@@ -0,0 +1,112 @@
+package org.redpill.alfresco.numbering.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Counter cache local to this repository instance, bounded in size and
+ * optionally expiring entries after a time to live. When the cache is full the
+ * least recently used entry is evicted. Keys are qualified by the tenant
+ * domain by the storages, so the entries of all tenants share one bound.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class LocalCounterCache implements CounterCache, InitializingBean {
+
+  protected static final int DEFAULT_MAX_ITEMS = 10000;
+
+  //Access ordered, guarded by synchronizing on the map itself
+  protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > maxItems;
+    }
+  };
+  protected int maxItems = DEFAULT_MAX_ITEMS;
+  protected long timeToLiveSeconds = 0;
+  protected CacheStatistics statistics = new CacheStatistics();
+
+  @Override
+  public NodeRef get(String key) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+        entries.remove(key);
+        entry = null;
+      }
+    }
+    if (entry != null) {
+      statistics.hit();
+      return entry.nodeRef;
+    }
+    statistics.miss();
+    return null;
+  }
+
+  @Override
+  public void put(String key, NodeRef nodeRef) {
+    long expires = timeToLiveSeconds > 0 ? System.currentTimeMillis() + timeToLiveSeconds * 1000 : Long.MAX_VALUE;
+    Entry entry = new Entry(nodeRef, expires);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  @Override
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  protected static class Entry {
+
+    private final NodeRef nodeRef;
+    private final long expires;
+
+    protected Entry(NodeRef nodeRef, long expires) {
+      this.nodeRef = nodeRef;
+      this.expires = expires;
+    }
+
+    protected boolean isExpired(long now) {
+      return now >= expires;
+    }
+  }
+
+  /**
+   * @param maxItems the maximum number of cached counter nodes
+   */
+  public void setMaxItems(int maxItems) {
+    this.maxItems = maxItems;
+  }
+
+  /**
+   * @param timeToLiveSeconds the time an entry is cached, 0 to never expire
+   */
+  public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+    this.timeToLiveSeconds = timeToLiveSeconds;
+  }
+
+  public void setStatistics(CacheStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.isTrue(maxItems > 0, "Max items must be at least 1");
+    Assert.notNull(statistics);
+  }
+
+}
@@ -0,0 +1,61 @@
+package org.redpill.alfresco.numbering.cache;
+
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Counter cache backed by an Alfresco SimpleCache. When the SimpleCache is
+ * created by the cache factory with cluster type invalidating, removals are
+ * propagated to all members of the cluster. Size and time to live are
+ * configured on the SimpleCache.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class SharedCounterCache implements CounterCache, InitializingBean {
+
+  protected SimpleCache<String, NodeRef> cache;
+  protected CacheStatistics statistics = new CacheStatistics();
+
+  @Override
+  public NodeRef get(String key) {
+    NodeRef nodeRef = cache.get(key);
+    if (nodeRef != null) {
+      statistics.hit();
+    } else {
+      statistics.miss();
+    }
+    return nodeRef;
+  }
+
+  @Override
+  public void put(String key, NodeRef nodeRef) {
+    cache.put(key, nodeRef);
+  }
+
+  @Override
+  public void remove(String key) {
+    cache.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    cache.clear();
+  }
+
+  public void setCache(SimpleCache<String, NodeRef> cache) {
+    this.cache = cache;
+  }
+
+  public void setStatistics(CacheStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(cache);
+    Assert.notNull(statistics);
+  }
+
+}
@@ -0,0 +1,125 @@
+package org.redpill.alfresco.numbering.component;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Snapshot of the type, aspects and properties of a node, read once and shared
+ * by the numbering policy, component and decorators while numbering the node.
+ *
+ * Snapshots are only kept within the scope of one numbering call, opened by
+ * the entry points of the numbering component and policy with openScope and
+ * closed with closeScope. Calls nested in an open scope share its snapshots,
+ * outside of a scope every get reads the node. Code that changes a node within
+ * a scope must invalidate its snapshot.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class NodeState {
+
+  //The snapshots of the numbering call in progress on each thread
+  private static final ThreadLocal<Map<NodeRef, NodeState>> SCOPE = new ThreadLocal<>();
+
+  private final NodeRef nodeRef;
+  private final QName type;
+  private final Set<QName> aspects;
+  private final Map<QName, Serializable> properties;
+
+  protected NodeState(NodeRef nodeRef, QName type, Set<QName> aspects, Map<QName, Serializable> properties) {
+    this.nodeRef = nodeRef;
+    this.type = type;
+    this.aspects = aspects;
+    this.properties = properties;
+  }
+
+  /**
+   * Open the snapshot scope of a numbering call, unless the call is nested in
+   * a scope which is already open
+   *
+   * @return true if the scope was opened by this call, to be passed to
+   * closeScope
+   */
+  public static boolean openScope() {
+    if (SCOPE.get() != null) {
+      return false;
+    }
+    SCOPE.set(new HashMap<>());
+    return true;
+  }
+
+  /**
+   * Close the snapshot scope of a numbering call, dropping its snapshots
+   *
+   * @param opened The result of the matching openScope
+   */
+  public static void closeScope(boolean opened) {
+    if (opened) {
+      SCOPE.remove();
+    }
+  }
+
+  /**
+   * Get the snapshot of a node, reading it if there is none in the current
+   * scope
+   *
+   * @param nodeService The node service to read the node with
+   * @param nodeRef The node
+   * @return the snapshot or null if the node does not exist
+   */
+  public static NodeState get(NodeService nodeService, NodeRef nodeRef) {
+    Map<NodeRef, NodeState> states = SCOPE.get();
+    NodeState state = states == null ? null : states.get(nodeRef);
+    if (state == null) {
+      if (!nodeService.exists(nodeRef)) {
+        return null;
+      }
+      state = new NodeState(nodeRef, nodeService.getType(nodeRef), nodeService.getAspects(nodeRef), nodeService.getProperties(nodeRef));
+      if (states != null) {
+        states.put(nodeRef, state);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Remove the snapshot of a node from the current scope
+   *
+   * @param nodeRef The node
+   */
+  public static void invalidate(NodeRef nodeRef) {
+    Map<NodeRef, NodeState> states = SCOPE.get();
+    if (states != null) {
+      states.remove(nodeRef);
+    }
+  }
+
+  public NodeRef getNodeRef() {
+    return nodeRef;
+  }
+
+  public QName getType() {
+    return type;
+  }
+
+  public Set<QName> getAspects() {
+    return aspects;
+  }
+
+  public boolean hasAspect(QName aspect) {
+    return aspects.contains(aspect);
+  }
+
+  public Serializable getProperty(QName property) {
+    return properties.get(property);
+  }
+
+  public Map<QName, Serializable> getProperties() {
+    return properties;
+  }
+
+}
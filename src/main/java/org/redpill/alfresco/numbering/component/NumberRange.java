@@ -0,0 +1,64 @@
+package org.redpill.alfresco.numbering.component;
+
+import java.io.Serializable;
+
+/**
+ * A contiguous range of reserved numbers
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class NumberRange implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long first;
+  private final long count;
+
+  public NumberRange(long first, long count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least 1");
+    }
+    this.first = first;
+    this.count = count;
+  }
+
+  /**
+   * @return the first number of the range
+   */
+  public long getFirst() {
+    return first;
+  }
+
+  /**
+   * @return the last number of the range
+   */
+  public long getLast() {
+    return first + count - 1;
+  }
+
+  /**
+   * @return the number of numbers in the range
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Get a number of the range
+   *
+   * @param index The index in the range, starting at 0
+   * @return long
+   */
+  public long get(long index) {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("Index " + index + " is outside range of " + count + " numbers");
+    }
+    return first + index;
+  }
+
+  @Override
+  public String toString() {
+    return first + "-" + getLast();
+  }
+
+}
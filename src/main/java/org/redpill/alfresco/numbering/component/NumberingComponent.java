@@ -1,6 +1,10 @@
 package org.redpill.alfresco.numbering.component;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.redpill.alfresco.numbering.storage.TransactionMode;
 
 /**
  *
@@ -62,4 +66,79 @@ public interface NumberingComponent {
    */
 
   public String getDecoratedNextNumber(NodeRef nodeRef, String optionValue);
+
+  /**
+   * Reserve a contiguous range of numbers in the sequence with a single update
+   * of the counter. The numbers are not stored on any node. Components which
+   * cannot reserve ranges throw UnsupportedOperationException.
+   *
+   * @param count The number of numbers to reserve
+   * @return NumberRange
+   */
+  public default NumberRange reserveRange(long count) {
+    throw new UnsupportedOperationException(getClass().getName() + " cannot reserve ranges of numbers");
+  }
+
+  /**
+   * Reserve a contiguous range of numbers in the sequence based on
+   * optionValue with a single update of the counter.
+   *
+   * @param count The number of numbers to reserve
+   * @param optionValue
+   * @return NumberRange
+   */
+  public default NumberRange reserveRange(long count, String optionValue) {
+    throw new UnsupportedOperationException(getClass().getName() + " cannot reserve ranges of numbers");
+  }
+
+  /**
+   * Get decorated numbers for a list of nodes, reserving all numbers with a
+   * single update of the counter. Numbers are assigned in list order. Will
+   * throw exception if number generation is not allowed for any of the nodes
+   * and will however not store the numbers on the nodes. Components which
+   * cannot reserve ranges number the nodes one at a time.
+   *
+   * @param nodeRefs The nodes to get decorated numbers for
+   * @return the decorated number of each node, in list order
+   */
+  public default Map<NodeRef, String> getDecoratedNextNumbers(List<NodeRef> nodeRefs) {
+    for (NodeRef nodeRef : nodeRefs) {
+      assertAllowGetNextNumber(nodeRef);
+    }
+    Map<NodeRef, String> result = new LinkedHashMap<>(nodeRefs.size() * 2);
+    for (NodeRef nodeRef : nodeRefs) {
+      result.put(nodeRef, getDecoratedNextNumber(nodeRef));
+    }
+    return result;
+  }
+
+  /**
+   * Get decorated numbers based on optionValue for a list of nodes, reserving
+   * all numbers with a single update of the counter.
+   *
+   * @param nodeRefs The nodes to get decorated numbers for
+   * @param optionValue
+   * @return the decorated number of each node, in list order
+   */
+  public default Map<NodeRef, String> getDecoratedNextNumbers(List<NodeRef> nodeRefs, String optionValue) {
+    for (NodeRef nodeRef : nodeRefs) {
+      assertAllowGetNextNumber(nodeRef);
+    }
+    Map<NodeRef, String> result = new LinkedHashMap<>(nodeRefs.size() * 2);
+    for (NodeRef nodeRef : nodeRefs) {
+      result.put(nodeRef, getDecoratedNextNumber(nodeRef, optionValue));
+    }
+    return result;
+  }
+
+  /**
+   * Get how counter updates relate to the transaction of the caller. With
+   * DEFERRED the numbering policies number their nodes before the
+   * transaction commits.
+   *
+   * @return TransactionMode
+   */
+  public default TransactionMode getTransactionMode() {
+    return TransactionMode.REQUIRES_NEW;
+  }
 }
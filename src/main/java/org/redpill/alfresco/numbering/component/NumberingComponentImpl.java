@@ -1,9 +1,16 @@
 package org.redpill.alfresco.numbering.component;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.dictionary.DictionaryDAO;
+import org.alfresco.repo.dictionary.DictionaryListener;
 import org.alfresco.repo.model.Repository;
 import org.alfresco.service.cmr.dictionary.AspectDefinition;
 import org.alfresco.service.cmr.dictionary.DictionaryService;
@@ -15,7 +22,11 @@ import org.alfresco.service.namespace.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.redpill.alfresco.numbering.decorator.Decorator;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
 import org.redpill.alfresco.numbering.storage.NumberingStorage;
+import org.redpill.alfresco.numbering.storage.TenantKeys;
+import org.redpill.alfresco.numbering.storage.TransactionMode;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
@@ -25,7 +36,7 @@ import org.springframework.util.Assert;
  * @author Marcus Svensson - Redpill Linpro AB
  *
  */
-public class NumberingComponentImpl implements NumberingComponent, InitializingBean {
+public class NumberingComponentImpl implements NumberingComponent, DictionaryListener, InitializingBean {
 
   private static final Logger LOG = LoggerFactory.getLogger(NumberingComponentImpl.class);
 
@@ -41,52 +52,85 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
   protected List<QName> bindTypeQNames = new ArrayList<>();
   protected List<QName> ignoreTypeQNames = new ArrayList<>();
   protected List<QName> ignoreAspectQNames = new ArrayList<>();
+  protected List<String> optionValues = new ArrayList<>();
   protected Decorator decorator;
   protected NamespaceService namespaceService;
 
   protected static final String MSG_ERROR_NOT_ALLOWED = "Get next number is not allowed";
 
   protected NumberingStorage numberingStorage;
+  protected TransactionMode transactionMode = TransactionMode.REQUIRES_NEW;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+  protected DictionaryDAO dictionaryDAO;
+
+  /**
+   * Whether nodes of a type may be numbered per tenant domain, since tenants
+   * may have models of their own. Cleared when the dictionary is reloaded.
+   */
+  protected final ConcurrentMap<String, ConcurrentMap<QName, Boolean>> typeEligibility = new ConcurrentHashMap<>();
+
+  /**
+   * Bumped each time typeEligibility is cleared, so that a result computed
+   * against the previous dictionary or configuration is not cached
+   */
+  protected final AtomicLong eligibilityGeneration = new AtomicLong();
 
   @Override
   public boolean allowGetNextNumber(final NodeRef nodeRef) {
+    boolean opened = NodeState.openScope();
+    try {
+      long start = metrics.start();
+      boolean allowed = checkAllowGetNextNumber(nodeRef);
+      metrics.stop(NumberingMetrics.TIMER_COMPONENT_ALLOW, id, start);
+      return allowed;
+    } finally {
+      NodeState.closeScope(opened);
+    }
+  }
+
+  /**
+   * Checks existance, type and aspects of a node
+   *
+   * @param nodeRef The node to check
+   * @return true if the node may be numbered
+   */
+  protected boolean checkAllowGetNextNumber(final NodeRef nodeRef) {
     //Check for existance
-    if (nodeRef == null || !nodeService.exists(nodeRef)) {
+    NodeState state = nodeRef == null ? null : NodeState.get(nodeService, nodeRef);
+    if (state == null) {
       if (LOG.isTraceEnabled()) {
         LOG.trace("Node does not exist " + nodeRef);
       }
       return false;
     }
 
-    //Check that the node is of allowed type or subtype
-    boolean typeMatch = false;
-    QName type = nodeService.getType(nodeRef);
-    for (QName bindType : bindTypeQNames) {
-      if (type.equals(bindType)) {
-        typeMatch = true;
-      } else if (dictionaryService.isSubClass(type, bindType)) {
-        typeMatch = true;
+    //Check that the node is of allowed type or subtype and not an ignored type
+    QName type = state.getType();
+    ConcurrentMap<QName, Boolean> tenantEligibility = typeEligibility.computeIfAbsent(TenantKeys.getCurrentDomain(), key -> new ConcurrentHashMap<>());
+    Boolean typeAllowed = tenantEligibility.get(type);
+    if (typeAllowed == null) {
+      long generation = eligibilityGeneration.get();
+      typeAllowed = isTypeAllowed(type);
+      if (dictionaryDAO != null) {
+        tenantEligibility.put(type, typeAllowed);
+        if (eligibilityGeneration.get() != generation) {
+          //The cache was cleared while checking, the result may be stale
+          tenantEligibility.remove(type, typeAllowed);
+        }
       }
     }
-    if (!typeMatch) {
+    if (!typeAllowed) {
       if (LOG.isTraceEnabled()) {
-        LOG.trace("Node " + nodeRef + " of the type " + type.toString() + " is not in the list of allowed types ");
+        LOG.trace("Node " + nodeRef + " of the type " + type.toString() + " is not allowed");
       }
       return false;
     }
 
-    //Check if the node type is on the type ignore list
-    for (QName ignoreType : ignoreTypeQNames) {
-      if (type.equals(ignoreType)) {
-        if (LOG.isTraceEnabled()) {
-          LOG.trace("Node " + nodeRef + " is on the list of ignored types " + type.toString());
-        }
-        return false;
-      }
-    }
-
     //Check if the node has an aspect which is not allowed
-    Set<QName> aspects = nodeService.getAspects(nodeRef);
+    if (ignoreAspectQNames.isEmpty()) {
+      return true;
+    }
+    Set<QName> aspects = state.getAspects();
     for (QName ignoreAspect : ignoreAspectQNames) {
       if (aspects.contains(ignoreAspect)) {
         if (LOG.isTraceEnabled()) {
@@ -99,6 +143,61 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
     return true;
   }
 
+  /**
+   * Checks a type against the bind types and ignore types. The result only
+   * depends on the dictionary and is cached per type until the dictionary is
+   * reloaded.
+   *
+   * @param type The type of a node
+   * @return true if nodes of the type may be numbered
+   */
+  protected boolean isTypeAllowed(final QName type) {
+    boolean typeMatch = false;
+    for (QName bindType : bindTypeQNames) {
+      if (type.equals(bindType) || dictionaryService.isSubClass(type, bindType)) {
+        typeMatch = true;
+        break;
+      }
+    }
+    if (!typeMatch) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("The type " + type.toString() + " is not in the list of allowed types");
+      }
+      return false;
+    }
+
+    //Check if the type is on the type ignore list
+    if (ignoreTypeQNames.contains(type)) {
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("The type " + type.toString() + " is on the list of ignored types");
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Forget the cached type checks
+   */
+  protected void clearTypeEligibility() {
+    eligibilityGeneration.incrementAndGet();
+    typeEligibility.clear();
+  }
+
+  @Override
+  public void onDictionaryInit() {
+  }
+
+  @Override
+  public void afterDictionaryInit() {
+    clearTypeEligibility();
+  }
+
+  @Override
+  public void afterDictionaryDestroy() {
+    clearTypeEligibility();
+  }
+
   @Override
   public void assertAllowGetNextNumber(final NodeRef nodeRef) {
     if (!allowGetNextNumber(nodeRef)) {
@@ -108,25 +207,143 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
 
   @Override
   public long getNextNumber(final NodeRef nodeRef) {
+    boolean opened = NodeState.openScope();
+    try {
+      return nextNumber(nodeRef);
+    } finally {
+      NodeState.closeScope(opened);
+    }
+  }
+
+  /**
+   * Checks the node and gets the next number, called within a node state
+   * scope so that the snapshot is kept for decorating the number
+   *
+   * @param nodeRef The node to number
+   * @return long
+   */
+  protected long nextNumber(final NodeRef nodeRef) {
     assertAllowGetNextNumber(nodeRef);
-    return numberingStorage.getNextNumber(startValue, id);
+    long start = metrics.start();
+    long number = numberingStorage.getNextNumber(startValue, id, transactionMode);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_STORAGE, id, start);
+    return number;
   }
   
   @Override
   public long getNextNumber(final NodeRef nodeRef,String subOptionValue) {
  //   assertAllowGetNextNumber(nodeRef,subOptionValue);
-    return numberingStorage.getNextNumber(startValue, id,subOptionValue);
+    long start = metrics.start();
+    long number = numberingStorage.getNextNumber(startValue, id, subOptionValue, transactionMode);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_STORAGE, id, start);
+    return number;
   }
 
 
  @Override
   public String getDecoratedNextNumber(final NodeRef nodeRef) {
-    return decorator.decorate(getNextNumber(nodeRef), nodeRef);
+    boolean opened = NodeState.openScope();
+    try {
+      return decorate(nextNumber(nodeRef), nodeRef);
+    } finally {
+      NodeState.closeScope(opened);
+    }
   }
   
   @Override
   public String getDecoratedNextNumber(final NodeRef nodeRef,String subOptionValue) {
-    return decorator.decorate(getNextNumber(nodeRef,subOptionValue), nodeRef);
+    boolean opened = NodeState.openScope();
+    try {
+      return decorate(getNextNumber(nodeRef,subOptionValue), nodeRef, subOptionValue);
+    } finally {
+      NodeState.closeScope(opened);
+    }
+  }
+
+  protected String decorate(long number, NodeRef nodeRef) {
+    long start = metrics.start();
+    String decoratedNumber = decorator.decorate(number, nodeRef);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_DECORATOR, id, start);
+    return decoratedNumber;
+  }
+
+  protected String decorate(long number, NodeRef nodeRef, String subOptionValue) {
+    long start = metrics.start();
+    String decoratedNumber = decorator.decorate(number, nodeRef, subOptionValue);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_DECORATOR, id, start);
+    return decoratedNumber;
+  }
+
+  protected Map<NodeRef, String> decorate(NumberRange range, List<NodeRef> nodeRefs) {
+    long start = metrics.start();
+    Map<NodeRef, String> decoratedNumbers = decorator.decorate(range.getFirst(), nodeRefs);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_DECORATOR, id, start);
+    return decoratedNumbers;
+  }
+
+  protected Map<NodeRef, String> decorate(NumberRange range, List<NodeRef> nodeRefs, String subOptionValue) {
+    long start = metrics.start();
+    Map<NodeRef, String> decoratedNumbers = decorator.decorate(range.getFirst(), nodeRefs, subOptionValue);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_DECORATOR, id, start);
+    return decoratedNumbers;
+  }
+
+  @Override
+  public NumberRange reserveRange(long count) {
+    long start = metrics.start();
+    NumberRange range = new NumberRange(numberingStorage.reserveRange(startValue, id, count, transactionMode), count);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_STORAGE, id, start);
+    return range;
+  }
+
+  @Override
+  public NumberRange reserveRange(long count, String subOptionValue) {
+    long start = metrics.start();
+    NumberRange range = new NumberRange(numberingStorage.reserveRange(startValue, id, subOptionValue, count, transactionMode), count);
+    metrics.stop(NumberingMetrics.TIMER_COMPONENT_STORAGE, id, start);
+    return range;
+  }
+
+  /**
+   * Creates the counter of the component and the counters of the known option
+   * values if they do not exist
+   */
+  public void ensureCounters() {
+    numberingStorage.ensureCounter(startValue, id);
+    for (String optionValue : optionValues) {
+      numberingStorage.ensureCounter(startValue, id, optionValue);
+    }
+  }
+
+  @Override
+  public Map<NodeRef, String> getDecoratedNextNumbers(final List<NodeRef> nodeRefs) {
+    if (nodeRefs.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    boolean opened = NodeState.openScope();
+    try {
+      for (NodeRef nodeRef : nodeRefs) {
+        assertAllowGetNextNumber(nodeRef);
+      }
+      NumberRange range = reserveRange(nodeRefs.size());
+      return decorate(range, nodeRefs);
+    } finally {
+      NodeState.closeScope(opened);
+    }
+  }
+
+  @Override
+  public Map<NodeRef, String> getDecoratedNextNumbers(final List<NodeRef> nodeRefs, String subOptionValue) {
+    if (nodeRefs.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    boolean opened = NodeState.openScope();
+    try {
+      NumberRange range = reserveRange(nodeRefs.size(), subOptionValue);
+      return decorate(range, nodeRefs, subOptionValue);
+    } finally {
+      NodeState.closeScope(opened);
+    }
   }
 
   public void setRepositoryHelper(Repository repositoryHelper) {
@@ -177,6 +394,7 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
         LOG.trace("Registering bind types: " + bindTypes.toString());
       }
       checkForDictionaryExistance(bindTypes, bindTypeQNames);
+      clearTypeEligibility();
     }
   }
 
@@ -197,9 +415,18 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
         LOG.trace("Registering ignore types: " + ignoreTypes.toString());
       }
       checkForDictionaryExistance(ignoreTypes, ignoreTypeQNames);
+      clearTypeEligibility();
     }
   }
 
+  /**
+   * @param optionValues The option values known in advance, their counters are
+   * created on startup
+   */
+  public void setOptionValues(List<String> optionValues) {
+    this.optionValues = optionValues;
+  }
+
   public void setDecorator(Decorator decorator) {
     this.decorator = decorator;
   }
@@ -212,6 +439,47 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
     this.numberingStorage = numberingStorage;
   }
 
+  public String getId() {
+    return id;
+  }
+
+  public long getStartValue() {
+    return startValue;
+  }
+
+  public List<String> getOptionValues() {
+    return optionValues;
+  }
+
+  public NumberingStorage getNumberingStorage() {
+    return numberingStorage;
+  }
+
+  @Override
+  public TransactionMode getTransactionMode() {
+    return transactionMode;
+  }
+
+  /**
+   * @param transactionMode How counter updates relate to the transaction of
+   * the caller, REQUIRES_NEW, JOIN or DEFERRED
+   */
+  public void setTransactionMode(TransactionMode transactionMode) {
+    this.transactionMode = transactionMode;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param dictionaryDAO Clears the cached type checks when the dictionary is
+   * reloaded, without it the bind and ignore types are checked for every node
+   */
+  public void setDictionaryDAO(DictionaryDAO dictionaryDAO) {
+    this.dictionaryDAO = dictionaryDAO;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     Assert.notNull(repositoryHelper);
@@ -221,7 +489,12 @@ public class NumberingComponentImpl implements NumberingComponent, InitializingB
     Assert.notNull(namespaceService);
 
     Assert.notNull(numberingStorage);
+    Assert.notNull(transactionMode, "you must provide a transaction mode");
+    Assert.notNull(metrics);
 
+    if (dictionaryDAO != null) {
+      dictionaryDAO.registerListener(this);
+    }
   }
 
 }
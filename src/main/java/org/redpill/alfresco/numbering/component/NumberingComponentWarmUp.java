@@ -0,0 +1,57 @@
+package org.redpill.alfresco.numbering.component;
+
+import java.util.Map;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+/**
+ * Creates the counters of all numbering components and their known option
+ * values on startup, so that the first number of a series is not delayed by
+ * creating its counter in the user's transaction. Existing counters are only
+ * looked up, which also loads them into the counter caches.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class NumberingComponentWarmUp extends AbstractLifecycleBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(NumberingComponentWarmUp.class);
+
+  protected boolean enabled = true;
+
+  @Override
+  protected void onBootstrap(ApplicationEvent event) {
+    if (!enabled) {
+      return;
+    }
+    final Map<String, NumberingComponentImpl> components = getApplicationContext().getBeansOfType(NumberingComponentImpl.class);
+    AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+      @Override
+      public Void doWork() throws Exception {
+        for (Map.Entry<String, NumberingComponentImpl> entry : components.entrySet()) {
+          try {
+            entry.getValue().ensureCounters();
+          } catch (RuntimeException e) {
+            LOG.warn("Failed to create the counters of numbering component " + entry.getKey(), e);
+          }
+        }
+        return null;
+      }
+    });
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Created the counters of " + components.size() + " numbering components");
+    }
+  }
+
+  @Override
+  protected void onShutdown(ApplicationEvent event) {
+    // Nothing to do
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+}
@@ -1,15 +1,22 @@
 package org.redpill.alfresco.numbering.decorator;
 
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.apache.commons.lang.StringUtils;
 
 /**
  * A regular number series
  *
+ * decorate(long, NodeRef) formats the number through decorate(String,
+ * NodeRef), which subclasses may override. Numbers are formatted into a
+ * buffer reused by each thread, the prefix is appended by appendPrefix and
+ * the zero padded number is written straight into the buffer.
+ *
  * @author Marcus Svartmark
  */
 public class BasicDecorator implements Decorator {
 
+  //The free buffer of each thread, null while a decorator on the thread is using it
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<>();
+
   protected int zeroPadding = 0;
 
   /**
@@ -23,19 +30,72 @@ public class BasicDecorator implements Decorator {
   }
 
   /**
-   * Left pad number
+   * Take the format buffer of the current thread. A decorator called while
+   * another decorator on the same thread formats a number gets a buffer of
+   * its own.
    *
-   * @param number The number to pad
-   * @param padding The padding to use
-   * @param padWith The character to pad with
-   * @return
+   * @return an empty buffer, to be handed back with releaseBuffer
    */
-  protected String leftPadNumber(String number, int padding, String padWith) {
-    if (padding > 0) {
-      return StringUtils.leftPad(number, padding, padWith);
-    } else {
-      return number;
+  protected static StringBuilder acquireBuffer() {
+    StringBuilder sb = BUFFER.get();
+    if (sb == null) {
+      return new StringBuilder(64);
     }
+    BUFFER.set(null);
+    sb.setLength(0);
+    return sb;
+  }
+
+  /**
+   * Hand a buffer back for reuse by the current thread
+   *
+   * @param sb The buffer taken with acquireBuffer
+   */
+  protected static void releaseBuffer(StringBuilder sb) {
+    BUFFER.set(sb);
+  }
+
+  /**
+   * Append the text before the number, nothing for a regular number series
+   *
+   * @param sb The buffer to append to
+   * @param nodeRef The node this affects
+   */
+  protected void appendPrefix(StringBuilder sb, NodeRef nodeRef) {
+    // No prefix
+  }
+
+  /**
+   * @param number a number
+   * @return the number of characters of the number, including the sign
+   */
+  protected static int stringSize(long number) {
+    int size = 1;
+    if (number >= 0) {
+      size = 0;
+      number = -number;
+    }
+    long limit = -10;
+    for (int i = 1; i < 19; i++) {
+      if (number > limit) {
+        return i + size;
+      }
+      limit = 10 * limit;
+    }
+    return 19 + size;
+  }
+
+  /**
+   * Append a number left padded with zeros
+   *
+   * @param sb The buffer to append to
+   * @param number The number to append
+   */
+  protected void appendPadded(StringBuilder sb, String number) {
+    for (int i = number.length(); i < zeroPadding; i++) {
+      sb.append('0');
+    }
+    sb.append(number);
   }
 
   @Override
@@ -45,7 +105,14 @@ public class BasicDecorator implements Decorator {
 
   @Override
   public String decorate(String number, NodeRef nodeRef) {
-    return leftPadNumber(number, zeroPadding, "0");
+    StringBuilder sb = acquireBuffer();
+    try {
+      appendPrefix(sb, nodeRef);
+      appendPadded(sb, number);
+      return sb.toString();
+    } finally {
+      releaseBuffer(sb);
+    }
   }
 
 }
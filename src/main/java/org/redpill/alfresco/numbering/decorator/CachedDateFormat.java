@@ -0,0 +1,190 @@
+package org.redpill.alfresco.numbering.decorator;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Formats the current date with a compiled pattern. The formatted date is
+ * cached until the period of the smallest field in the pattern ends, e.g.
+ * until midnight for yyyy-MM-dd.
+ *
+ * The pattern uses the syntax of DateTimeFormatter, which for the common
+ * letters y, M, d, H, m and s is the same as SimpleDateFormat.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class CachedDateFormat {
+
+  private final String pattern;
+  private final DateTimeFormatter formatter;
+  private final ChronoUnit period;
+  private final Clock clock;
+  private volatile FormattedDate cached;
+
+  /**
+   * A formatted date and the time span it is valid for
+   */
+  private static class FormattedDate {
+
+    private final String value;
+    private final long validFrom;
+    private final long validUntil;
+
+    private FormattedDate(String value, long validFrom, long validUntil) {
+      this.value = value;
+      this.validFrom = validFrom;
+      this.validUntil = validUntil;
+    }
+  }
+
+  public CachedDateFormat(String pattern) {
+    this(pattern, Clock.systemDefaultZone());
+  }
+
+  public CachedDateFormat(String pattern, Clock clock) {
+    this.pattern = pattern;
+    this.formatter = DateTimeFormatter.ofPattern(pattern);
+    this.period = period(pattern);
+    this.clock = clock;
+  }
+
+  /**
+   * @return the current date formatted with the pattern
+   */
+  public String format() {
+    long now = clock.millis();
+    FormattedDate formattedDate = cached;
+    if (formattedDate == null || now < formattedDate.validFrom || now >= formattedDate.validUntil) {
+      formattedDate = createFormattedDate(now);
+      cached = formattedDate;
+    }
+    return formattedDate.value;
+  }
+
+  /**
+   * Format a given instant with the pattern, bypassing the cache
+   *
+   * @param instant the instant to format
+   * @return the formatted date
+   */
+  public String format(Instant instant) {
+    return formatter.format(instant.atZone(clock.getZone()));
+  }
+
+  public String getPattern() {
+    return pattern;
+  }
+
+  /**
+   * Format the date and work out the start and end of its period
+   *
+   * @param now The current time in milliseconds
+   * @return FormattedDate
+   */
+  private FormattedDate createFormattedDate(long now) {
+    ZoneId zone = clock.getZone();
+    ZonedDateTime time = Instant.ofEpochMilli(now).atZone(zone);
+    LocalDate date = time.toLocalDate();
+    ZonedDateTime start;
+    ZonedDateTime end;
+    switch (period) {
+      case YEARS:
+        start = date.withDayOfYear(1).atStartOfDay(zone);
+        end = date.withDayOfYear(1).plusYears(1).atStartOfDay(zone);
+        break;
+      case MONTHS:
+        start = date.withDayOfMonth(1).atStartOfDay(zone);
+        end = date.withDayOfMonth(1).plusMonths(1).atStartOfDay(zone);
+        break;
+      case DAYS:
+        start = date.atStartOfDay(zone);
+        end = date.plusDays(1).atStartOfDay(zone);
+        break;
+      case HOURS:
+      case MINUTES:
+      case SECONDS:
+        start = time.truncatedTo(period);
+        end = start.plus(1, period);
+        break;
+      default:
+        start = time;
+        end = time;
+    }
+    return new FormattedDate(formatter.format(time), start.toInstant().toEpochMilli(), end.toInstant().toEpochMilli());
+  }
+
+  /**
+   * The period of the smallest field of a date pattern, which is how long a
+   * formatted date stays the same. Patterns with fields below seconds are not
+   * cached.
+   *
+   * @param pattern the date pattern
+   * @return ChronoUnit
+   */
+  protected static ChronoUnit period(String pattern) {
+    ChronoUnit period = ChronoUnit.YEARS;
+    boolean quoted = false;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+        continue;
+      }
+      if (quoted || !Character.isLetter(c)) {
+        continue;
+      }
+      ChronoUnit unit;
+      switch (c) {
+        case 'G':
+        case 'u':
+        case 'y':
+          unit = ChronoUnit.YEARS;
+          break;
+        case 'Q':
+        case 'q':
+        case 'M':
+        case 'L':
+          unit = ChronoUnit.MONTHS;
+          break;
+        case 'Y':
+        case 'w':
+        case 'W':
+        case 'D':
+        case 'd':
+        case 'F':
+        case 'E':
+        case 'e':
+        case 'c':
+          unit = ChronoUnit.DAYS;
+          break;
+        case 'a':
+        case 'B':
+        case 'h':
+        case 'K':
+        case 'k':
+        case 'H':
+          unit = ChronoUnit.HOURS;
+          break;
+        case 'm':
+          unit = ChronoUnit.MINUTES;
+          break;
+        case 's':
+          unit = ChronoUnit.SECONDS;
+          break;
+        default:
+          //Fractions of seconds, time zones and unknown letters are never cached
+          unit = ChronoUnit.NANOS;
+      }
+      if (unit.compareTo(period) < 0) {
+        period = unit;
+      }
+    }
+    return period;
+  }
+
+}
@@ -1,30 +1,40 @@
 package org.redpill.alfresco.numbering.decorator;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import org.alfresco.service.cmr.repository.NodeRef;
 
 /**
  * Number prefixed with a date
  *
+ * The formatted date is cached until the period of the smallest field in the
+ * date pattern ends, e.g. until midnight for yyyy-MM-dd.
+ *
  * @author Marcus Svartmark
  */
 public class CurrentDatePrefixDecorator extends PrefixDecorator implements Decorator {
 
   protected String datePattern = "yyyy-MM-dd";
 
+  private volatile CachedDateFormat dateFormat = new CachedDateFormat(datePattern);
+
+  /**
+   * The date pattern uses the syntax of DateTimeFormatter, which for the
+   * common letters y, M, d, H, m and s is the same as SimpleDateFormat
+   *
+   * @param datePattern the pattern of the date prefix
+   */
   public void setDatePattern(String datePattern) {
     this.datePattern = datePattern;
+    this.dateFormat = new CachedDateFormat(datePattern);
   }
 
   protected String getDatePrefix() {
-    SimpleDateFormat df = new SimpleDateFormat(datePattern);
-    return df.format(new Date());
+    return dateFormat.format();
   }
 
   @Override
-  public String decorate(String number, NodeRef nodeRef) {
-    return decorate(number, nodeRef, getDatePrefix());
+  protected void appendPrefix(StringBuilder sb, NodeRef nodeRef) {
+    sb.append(getDatePrefix());
+    sb.append(prefixSeparator);
   }
 
 }
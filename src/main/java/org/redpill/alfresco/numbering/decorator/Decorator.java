@@ -1,5 +1,8 @@
 package org.redpill.alfresco.numbering.decorator;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.alfresco.service.cmr.repository.NodeRef;
 
 /**
@@ -27,4 +30,50 @@ public interface Decorator {
    * @return String
    */
   public String decorate(String number, NodeRef nodeRef);
+
+  /**
+   * Format a range of consecutive numbers according to a pattern, the first
+   * node receives firstNumber, the second firstNumber + 1 and so on
+   *
+   * @param firstNumber The first counter number of the range
+   * @param nodeRefs The noderefs of the nodes that will eventually receive the
+   * numbers (note that the decorator does not write the numbers)
+   * @return the decorated number of each node, in list order
+   */
+  public default Map<NodeRef, String> decorate(long firstNumber, List<NodeRef> nodeRefs) {
+    Map<NodeRef, String> result = new LinkedHashMap<>(nodeRefs.size() * 2);
+    long number = firstNumber;
+    for (NodeRef nodeRef : nodeRefs) {
+      result.put(nodeRef, decorate(number++, nodeRef));
+    }
+    return result;
+  }
+
+  /**
+   * Format the number of an option counter according to a pattern. Decorators
+   * which do not use the option value format it like any other number.
+   *
+   * @param number The counter number to decorate
+   * @param nodeRef The noderef of the node that will eventually receive this
+   * number
+   * @param optionValue The option value of the counter
+   * @return String
+   */
+  public default String decorate(long number, NodeRef nodeRef, String optionValue) {
+    return decorate(number, nodeRef);
+  }
+
+  /**
+   * Format a range of consecutive numbers of an option counter according to
+   * a pattern
+   *
+   * @param firstNumber The first counter number of the range
+   * @param nodeRefs The noderefs of the nodes that will eventually receive the
+   * numbers
+   * @param optionValue The option value of the counter
+   * @return the decorated number of each node, in list order
+   */
+  public default Map<NodeRef, String> decorate(long firstNumber, List<NodeRef> nodeRefs, String optionValue) {
+    return decorate(firstNumber, nodeRefs);
+  }
 }
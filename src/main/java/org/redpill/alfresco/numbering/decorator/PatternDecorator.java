@@ -0,0 +1,302 @@
+package org.redpill.alfresco.numbering.decorator;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.redpill.alfresco.numbering.component.NodeState;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Number formatted by a pattern, e.g. {yyyy}-{prefix}-{seq:06}-{prop:cm:name}
+ *
+ * The pattern is compiled once into tokens which are rendered in a single
+ * pass into a reused buffer. Supported tokens are
+ * <ul>
+ * <li>{seq} the number, {seq:06} zero padded to 6 digits</li>
+ * <li>{prefix} the configured prefix</li>
+ * <li>{option} the option value of an option counter</li>
+ * <li>{prop:cm:name} a property of the numbered node</li>
+ * <li>{yyyy}, {date:yyyy-MM} the current date in DateTimeFormatter syntax</li>
+ * </ul>
+ * A token without a prefix is only taken as a date if it consists of date
+ * letters and separators, any other token is rejected when the pattern is
+ * compiled. Other text is copied as is, {{ and }} give literal braces.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class PatternDecorator implements Decorator, InitializingBean {
+
+  protected static final String TOKEN_SEQUENCE = "seq";
+  protected static final String TOKEN_PREFIX = "prefix";
+  protected static final String TOKEN_OPTION = "option";
+  protected static final String TOKEN_PROPERTY = "prop:";
+  protected static final String TOKEN_DATE = "date:";
+  //Pattern letters and separators of a date token without the date: prefix
+  protected static final String DATE_LETTERS = "GuyYQqMLwWdDEHhKkmsS";
+  protected static final String DATE_SEPARATORS = "-/._: ";
+
+  protected String pattern;
+  protected String prefix = "";
+  protected NodeService nodeService;
+  protected NamespaceService namespaceService;
+
+  private volatile Token[] tokens;
+
+  protected enum TokenType {
+    LITERAL, SEQUENCE, OPTION, PROPERTY, DATE
+  }
+
+  /**
+   * A compiled token of the pattern
+   */
+  protected static class Token {
+
+    private final TokenType type;
+    private final String text;
+    private final int width;
+    private final QName property;
+    private final CachedDateFormat dateFormat;
+
+    protected Token(TokenType type, String text, int width, QName property, CachedDateFormat dateFormat) {
+      this.type = type;
+      this.text = text;
+      this.width = width;
+      this.property = property;
+      this.dateFormat = dateFormat;
+    }
+  }
+
+  /**
+   * Compile a pattern into tokens, adjacent literal text is joined into one
+   * token
+   *
+   * @param pattern The pattern
+   * @return Token[]
+   */
+  protected Token[] compile(String pattern) {
+    List<Token> result = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < pattern.length()) {
+      char c = pattern.charAt(i);
+      if ((c == '{' || c == '}') && i + 1 < pattern.length() && pattern.charAt(i + 1) == c) {
+        literal.append(c);
+        i += 2;
+      } else if (c == '{') {
+        int end = pattern.indexOf('}', i + 1);
+        if (end < 0) {
+          throw new IllegalArgumentException("Unterminated token at position " + i + " in pattern " + pattern);
+        }
+        String token = pattern.substring(i + 1, end);
+        if (TOKEN_PREFIX.equals(token)) {
+          literal.append(prefix);
+        } else {
+          if (literal.length() > 0) {
+            result.add(new Token(TokenType.LITERAL, literal.toString(), 0, null, null));
+            literal.setLength(0);
+          }
+          result.add(compileToken(token));
+        }
+        i = end + 1;
+      } else {
+        literal.append(c);
+        i++;
+      }
+    }
+    if (literal.length() > 0) {
+      result.add(new Token(TokenType.LITERAL, literal.toString(), 0, null, null));
+    }
+    return result.toArray(new Token[result.size()]);
+  }
+
+  protected Token compileToken(String token) {
+    if (TOKEN_SEQUENCE.equals(token)) {
+      return new Token(TokenType.SEQUENCE, null, 0, null, null);
+    } else if (token.startsWith(TOKEN_SEQUENCE + ":")) {
+      int width = Integer.parseInt(token.substring(TOKEN_SEQUENCE.length() + 1));
+      return new Token(TokenType.SEQUENCE, null, width, null, null);
+    } else if (TOKEN_OPTION.equals(token)) {
+      return new Token(TokenType.OPTION, null, 0, null, null);
+    } else if (token.startsWith(TOKEN_PROPERTY)) {
+      Assert.notNull(nodeService, "A node service is required for property tokens");
+      Assert.notNull(namespaceService, "A namespace service is required for property tokens");
+      QName property = QName.resolveToQName(namespaceService, token.substring(TOKEN_PROPERTY.length()));
+      return new Token(TokenType.PROPERTY, null, 0, property, null);
+    } else if (token.startsWith(TOKEN_DATE)) {
+      return new Token(TokenType.DATE, null, 0, null, new CachedDateFormat(token.substring(TOKEN_DATE.length())));
+    } else if (isDateToken(token)) {
+      return new Token(TokenType.DATE, null, 0, null, new CachedDateFormat(token));
+    }
+    throw new IllegalArgumentException("Unknown token {" + token + "} in pattern " + pattern + ", use {date:" + token + "} for a date");
+  }
+
+  /**
+   * @param token The token without braces
+   * @return true if the token only consists of date letters and separators
+   */
+  protected boolean isDateToken(String token) {
+    boolean letter = false;
+    for (int i = 0; i < token.length(); i++) {
+      char c = token.charAt(i);
+      if (DATE_LETTERS.indexOf(c) >= 0) {
+        letter = true;
+      } else if (DATE_SEPARATORS.indexOf(c) < 0) {
+        return false;
+      }
+    }
+    return letter;
+  }
+
+  /**
+   * Render the tokens into a buffer
+   *
+   * @param sb The buffer
+   * @param number The number, used if numberText is null
+   * @param numberText The number as text or null
+   * @param nodeRef The numbered node
+   * @param optionValue The option value or null
+   * @param dates The formatted dates of each token or null to format the
+   * current date
+   */
+  protected void render(StringBuilder sb, long number, String numberText, NodeRef nodeRef, String optionValue, String[] dates) {
+    Token[] compiled = tokens;
+    for (int i = 0; i < compiled.length; i++) {
+      Token token = compiled[i];
+      switch (token.type) {
+        case LITERAL:
+          sb.append(token.text);
+          break;
+        case SEQUENCE:
+          for (int j = numberText != null ? numberText.length() : BasicDecorator.stringSize(number); j < token.width; j++) {
+            sb.append('0');
+          }
+          if (numberText != null) {
+            sb.append(numberText);
+          } else {
+            sb.append(number);
+          }
+          break;
+        case OPTION:
+          if (optionValue != null) {
+            sb.append(optionValue);
+          }
+          break;
+        case PROPERTY:
+          if (nodeRef != null) {
+            NodeState state = NodeState.get(nodeService, nodeRef);
+            Serializable value = state == null ? null : state.getProperty(token.property);
+            if (value != null) {
+              sb.append(value);
+            }
+          }
+          break;
+        case DATE:
+          sb.append(dates != null ? dates[i] : token.dateFormat.format());
+          break;
+        default:
+          throw new IllegalStateException("Unknown token " + token.type);
+      }
+    }
+  }
+
+  @Override
+  public String decorate(long number, NodeRef nodeRef) {
+    return decorate(number, nodeRef, null);
+  }
+
+  @Override
+  public String decorate(String number, NodeRef nodeRef) {
+    StringBuilder sb = BasicDecorator.acquireBuffer();
+    try {
+      render(sb, 0, number, nodeRef, null, null);
+      return sb.toString();
+    } finally {
+      BasicDecorator.releaseBuffer(sb);
+    }
+  }
+
+  @Override
+  public String decorate(long number, NodeRef nodeRef, String optionValue) {
+    StringBuilder sb = BasicDecorator.acquireBuffer();
+    try {
+      render(sb, number, null, nodeRef, optionValue, null);
+      return sb.toString();
+    } finally {
+      BasicDecorator.releaseBuffer(sb);
+    }
+  }
+
+  @Override
+  public Map<NodeRef, String> decorate(long firstNumber, List<NodeRef> nodeRefs) {
+    return decorate(firstNumber, nodeRefs, null);
+  }
+
+  /**
+   * The dates are formatted once for the whole range
+   */
+  @Override
+  public Map<NodeRef, String> decorate(long firstNumber, List<NodeRef> nodeRefs, String optionValue) {
+    Token[] compiled = tokens;
+    String[] dates = new String[compiled.length];
+    for (int i = 0; i < compiled.length; i++) {
+      if (compiled[i].type == TokenType.DATE) {
+        dates[i] = compiled[i].dateFormat.format();
+      }
+    }
+    Map<NodeRef, String> result = new LinkedHashMap<>(nodeRefs.size() * 2);
+    long number = firstNumber;
+    StringBuilder sb = BasicDecorator.acquireBuffer();
+    try {
+      for (NodeRef nodeRef : nodeRefs) {
+        sb.setLength(0);
+        render(sb, number++, null, nodeRef, optionValue, dates);
+        result.put(nodeRef, sb.toString());
+      }
+    } finally {
+      BasicDecorator.releaseBuffer(sb);
+    }
+    return result;
+  }
+
+  /**
+   * @param pattern the pattern, e.g. {yyyy}-{prefix}-{seq:06}
+   */
+  public void setPattern(String pattern) {
+    this.pattern = pattern;
+  }
+
+  /**
+   * @param prefix the text of the {prefix} token
+   */
+  public void setPrefix(String prefix) {
+    this.prefix = prefix;
+  }
+
+  public void setNodeService(NodeService nodeService) {
+    this.nodeService = nodeService;
+  }
+
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.hasText(pattern, "A pattern is required");
+    Token[] compiled = compile(pattern);
+    boolean sequence = false;
+    for (Token token : compiled) {
+      sequence |= token.type == TokenType.SEQUENCE;
+    }
+    Assert.isTrue(sequence, "The pattern must contain a {seq} token: " + pattern);
+    tokens = compiled;
+  }
+
+}
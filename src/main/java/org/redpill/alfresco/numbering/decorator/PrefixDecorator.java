@@ -3,7 +3,7 @@ package org.redpill.alfresco.numbering.decorator;
 import org.alfresco.service.cmr.repository.NodeRef;
 
 /**
- * Number prefixed with a date
+ * Number prefixed with a fixed prefix and separator
  *
  * @author Marcus Svartmark
  */
@@ -12,33 +12,22 @@ public class PrefixDecorator extends BasicDecorator implements Decorator {
   protected String prefixSeparator = "";
   protected String prefix = "";
 
+  //Prefix and separator joined once when configured
+  private volatile String compiledPrefix = "";
+
   public void setPrefix(String prefix) {
     this.prefix = prefix;
+    this.compiledPrefix = prefix + prefixSeparator;
   }
 
   public void setPrefixSeparator(String prefixSeparator) {
     this.prefixSeparator = prefixSeparator;
-  }
-
-  /**
-   * Decorate a number with prefix and prefix separator
-   *
-   * @param number The number to decorate
-   * @param nodeRef The node this affects
-   * @param prefix what prefix to append
-   * @return String
-   */
-  protected String decorate(String number, NodeRef nodeRef, String prefix) {
-    StringBuilder sb = new StringBuilder();
-    sb.append(prefix);
-    sb.append(prefixSeparator);
-    sb.append(super.decorate(number, nodeRef));
-    return sb.toString();
+    this.compiledPrefix = prefix + prefixSeparator;
   }
 
   @Override
-  public String decorate(String number, NodeRef nodeRef) {
-    return decorate(number, nodeRef, prefix);
+  protected void appendPrefix(StringBuilder sb, NodeRef nodeRef) {
+    sb.append(compiledPrefix);
   }
 
 }
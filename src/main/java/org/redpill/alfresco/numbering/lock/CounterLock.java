@@ -0,0 +1,205 @@
+package org.redpill.alfresco.numbering.lock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.service.namespace.QName;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.redpill.alfresco.numbering.storage.NumberingStorage;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Serializes work on the same counter. Threads on this repository instance
+ * queue on a striped lock keyed by counter, so that concurrent increments of
+ * a counter do not collide in the database and cause transaction retries.
+ * Optionally the work is also guarded by a cluster wide lock from the job
+ * lock service. Every tenant has stripes of its own, so that the counters of
+ * one tenant never wait on those of another.
+ *
+ * The lock must only be held around work which commits before the lock is
+ * released, otherwise a waiting thread blocks on the database row lock of the
+ * uncommitted transaction.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class CounterLock implements CounterLockMBean, InitializingBean {
+
+  protected static final int DEFAULT_STRIPES = 64;
+  protected static final long DEFAULT_CLUSTER_LOCK_TTL = 30000L;
+
+  protected int stripes = DEFAULT_STRIPES;
+  protected boolean clusterLock = false;
+  protected long clusterLockTTL = DEFAULT_CLUSTER_LOCK_TTL;
+  protected long clusterLockRetryWait = 50;
+  protected int clusterLockRetryCount = 600;
+  protected JobLockService jobLockService;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+
+  private ReentrantLock[] locks;
+  private final ConcurrentMap<String, ReentrantLock[]> tenantLocks = new ConcurrentHashMap<>();
+  private final LongAdder acquisitions = new LongAdder();
+  private final LongAdder retriesAvoided = new LongAdder();
+  private final LongAdder transactionRetries = new LongAdder();
+  private final LongAdder waitTimeNanos = new LongAdder();
+
+  /**
+   * Work to execute while holding a counter lock
+   *
+   * @param <T> the result type
+   */
+  public interface LockCallback<T> {
+
+    T execute();
+  }
+
+  /**
+   * Execute work while holding the lock of a counter
+   *
+   * @param <T> the result type
+   * @param key the counter key
+   * @param counterId the component id, which tags the lock metrics
+   * @param callback the work to execute
+   * @return the result of the callback
+   */
+  public <T> T doWithLock(String key, String counterId, LockCallback<T> callback) {
+    ReentrantLock lock = getLocks()[stripe(key)];
+    acquisitions.increment();
+    if (!lock.tryLock()) {
+      retriesAvoided.increment();
+      long start = System.nanoTime();
+      lock.lock();
+      long waited = System.nanoTime() - start;
+      waitTimeNanos.add(waited);
+      metrics.record(NumberingMetrics.TIMER_LOCK_WAIT, counterId, waited);
+    }
+    try {
+      if (!clusterLock) {
+        return callback.execute();
+      }
+      QName lockQName = QName.createQName(NumberingStorage.ATTR_ID + "." + key + ".lock");
+      long start = System.nanoTime();
+      String lockToken = jobLockService.getLock(lockQName, clusterLockTTL, clusterLockRetryWait, clusterLockRetryCount);
+      long waited = System.nanoTime() - start;
+      waitTimeNanos.add(waited);
+      metrics.record(NumberingMetrics.TIMER_LOCK_WAIT, counterId, waited);
+      try {
+        return callback.execute();
+      } finally {
+        jobLockService.releaseLock(lockToken, lockQName);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record a transaction retry of a counter update
+   */
+  public void recordTransactionRetry() {
+    transactionRetries.increment();
+  }
+
+  /**
+   * @return the lock stripes of the current tenant
+   */
+  protected ReentrantLock[] getLocks() {
+    String domain = TenantUtil.getCurrentDomain();
+    if (domain == null || TenantService.DEFAULT_DOMAIN.equals(domain)) {
+      return locks;
+    }
+    return tenantLocks.computeIfAbsent(domain, key -> createLocks());
+  }
+
+  protected ReentrantLock[] createLocks() {
+    ReentrantLock[] stripeLocks = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      stripeLocks[i] = new ReentrantLock();
+    }
+    return stripeLocks;
+  }
+
+  protected int stripe(String key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return (hash & Integer.MAX_VALUE) % stripes;
+  }
+
+  @Override
+  public long getAcquisitions() {
+    return acquisitions.sum();
+  }
+
+  @Override
+  public long getRetriesAvoided() {
+    return retriesAvoided.sum();
+  }
+
+  @Override
+  public long getTransactionRetries() {
+    return transactionRetries.sum();
+  }
+
+  @Override
+  public long getWaitTimeMillis() {
+    return waitTimeNanos.sum() / 1000000;
+  }
+
+  @Override
+  public void reset() {
+    acquisitions.reset();
+    retriesAvoided.reset();
+    transactionRetries.reset();
+    waitTimeNanos.reset();
+  }
+
+  /**
+   * @param stripes the number of local locks counters are spread over
+   */
+  public void setStripes(int stripes) {
+    this.stripes = stripes;
+  }
+
+  /**
+   * @param clusterLock set to true to also take a cluster wide lock
+   */
+  public void setClusterLock(boolean clusterLock) {
+    this.clusterLock = clusterLock;
+  }
+
+  public void setClusterLockTTL(long clusterLockTTL) {
+    this.clusterLockTTL = clusterLockTTL;
+  }
+
+  public void setClusterLockRetryWait(long clusterLockRetryWait) {
+    this.clusterLockRetryWait = clusterLockRetryWait;
+  }
+
+  public void setClusterLockRetryCount(int clusterLockRetryCount) {
+    this.clusterLockRetryCount = clusterLockRetryCount;
+  }
+
+  public void setJobLockService(JobLockService jobLockService) {
+    this.jobLockService = jobLockService;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.isTrue(stripes > 0, "Stripes must be at least 1");
+    Assert.notNull(metrics);
+    if (clusterLock) {
+      Assert.notNull(jobLockService);
+    }
+    locks = createLocks();
+  }
+
+}
@@ -0,0 +1,38 @@
+package org.redpill.alfresco.numbering.lock;
+
+/**
+ * Management interface for the counter lock statistics
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public interface CounterLockMBean {
+
+  /**
+   * @return the number of times a counter lock has been acquired
+   */
+  public long getAcquisitions();
+
+  /**
+   * @return the number of acquisitions which had to wait for another thread
+   * on this repository instance. Each of these would otherwise have been a
+   * concurrent update of the same counter, which is what causes transaction
+   * retries.
+   */
+  public long getRetriesAvoided();
+
+  /**
+   * @return the number of transaction retries which still happened while
+   * increasing counters
+   */
+  public long getTransactionRetries();
+
+  /**
+   * @return the total time in milliseconds spent waiting for counter locks
+   */
+  public long getWaitTimeMillis();
+
+  /**
+   * Reset the statistics
+   */
+  public void reset();
+}
@@ -0,0 +1,20 @@
+package org.redpill.alfresco.numbering.metrics;
+
+/**
+ * Base class of enabled metrics, timing with System.nanoTime
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public abstract class AbstractNumberingMetrics implements NumberingMetrics {
+
+  @Override
+  public long start() {
+    return System.nanoTime();
+  }
+
+  @Override
+  public void stop(String timer, String counterId, long start) {
+    record(timer, counterId, System.nanoTime() - start);
+  }
+
+}
@@ -0,0 +1,40 @@
+package org.redpill.alfresco.numbering.metrics;
+
+import java.util.List;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Records metrics in several metrics implementations, e.g. both JMX and a
+ * Micrometer registry
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class CompositeNumberingMetrics extends AbstractNumberingMetrics implements InitializingBean {
+
+  protected List<NumberingMetrics> delegates;
+
+  @Override
+  public void record(String timer, String counterId, long nanos) {
+    for (NumberingMetrics delegate : delegates) {
+      delegate.record(timer, counterId, nanos);
+    }
+  }
+
+  @Override
+  public void increment(String counter, String counterId) {
+    for (NumberingMetrics delegate : delegates) {
+      delegate.increment(counter, counterId);
+    }
+  }
+
+  public void setDelegates(List<NumberingMetrics> delegates) {
+    this.delegates = delegates;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notEmpty(delegates, "At least one metrics delegate is required");
+  }
+
+}
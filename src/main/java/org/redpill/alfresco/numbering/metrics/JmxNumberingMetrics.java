@@ -0,0 +1,105 @@
+package org.redpill.alfresco.numbering.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics kept in memory and exposed through JMX
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class JmxNumberingMetrics extends AbstractNumberingMetrics implements NumberingMetricsMXBean {
+
+  private static final double NANOS_PER_MILLI = 1000000d;
+
+  private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ConcurrentMap<String, TimerStatistics>> timers = new ConcurrentHashMap<>();
+
+  protected static class TimerStatistics {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    protected void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+  }
+
+  @Override
+  public void record(String timer, String counterId, long nanos) {
+    timers.computeIfAbsent(timer, key -> new ConcurrentHashMap<>())
+            .computeIfAbsent(counterId, key -> new TimerStatistics())
+            .record(nanos);
+  }
+
+  @Override
+  public void increment(String counter, String counterId) {
+    counters.computeIfAbsent(counter, key -> new ConcurrentHashMap<>())
+            .computeIfAbsent(counterId, key -> new LongAdder())
+            .increment();
+  }
+
+  protected static String key(String name, String counterId) {
+    return name + "[" + counterId + "]";
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<String, LongAdder>> counter : counters.entrySet()) {
+      for (Map.Entry<String, LongAdder> entry : counter.getValue().entrySet()) {
+        result.put(key(counter.getKey(), entry.getKey()), entry.getValue().sum());
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getTimerCounts() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<String, TimerStatistics>> timer : timers.entrySet()) {
+      for (Map.Entry<String, TimerStatistics> entry : timer.getValue().entrySet()) {
+        result.put(key(timer.getKey(), entry.getKey()), entry.getValue().count.sum());
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Double> getTimerMeanMillis() {
+    Map<String, Double> result = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<String, TimerStatistics>> timer : timers.entrySet()) {
+      for (Map.Entry<String, TimerStatistics> entry : timer.getValue().entrySet()) {
+        long count = entry.getValue().count.sum();
+        double mean = count == 0 ? 0 : entry.getValue().totalNanos.sum() / NANOS_PER_MILLI / count;
+        result.put(key(timer.getKey(), entry.getKey()), mean);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Double> getTimerMaxMillis() {
+    Map<String, Double> result = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<String, TimerStatistics>> timer : timers.entrySet()) {
+      for (Map.Entry<String, TimerStatistics> entry : timer.getValue().entrySet()) {
+        result.put(key(timer.getKey(), entry.getKey()), entry.getValue().maxNanos.get() / NANOS_PER_MILLI);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    counters.clear();
+    timers.clear();
+  }
+
+}
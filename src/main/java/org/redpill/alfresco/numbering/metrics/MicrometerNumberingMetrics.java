@@ -0,0 +1,49 @@
+package org.redpill.alfresco.numbering.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics recorded in a Micrometer registry. The counter or component id is
+ * added as the tag "counter". Uses the global registry unless a registry is
+ * set.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class MicrometerNumberingMetrics extends AbstractNumberingMetrics {
+
+  protected static final String TAG_COUNTER = "counter";
+
+  protected MeterRegistry meterRegistry = Metrics.globalRegistry;
+
+  //Meters are looked up once, registering them again on every call is expensive
+  private final ConcurrentMap<String, ConcurrentMap<String, Counter>> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ConcurrentMap<String, Timer>> timers = new ConcurrentHashMap<>();
+
+  @Override
+  public void record(final String timer, String counterId, long nanos) {
+    timers.computeIfAbsent(timer, key -> new ConcurrentHashMap<>())
+            .computeIfAbsent(counterId, key -> Timer.builder(timer).tag(TAG_COUNTER, key).register(meterRegistry))
+            .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void increment(final String counter, String counterId) {
+    counters.computeIfAbsent(counter, key -> new ConcurrentHashMap<>())
+            .computeIfAbsent(counterId, key -> Counter.builder(counter).tag(TAG_COUNTER, key).register(meterRegistry))
+            .increment();
+  }
+
+  /**
+   * @param meterRegistry the registry to record metrics in
+   */
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+}
@@ -0,0 +1,30 @@
+package org.redpill.alfresco.numbering.metrics;
+
+/**
+ * Metrics which records nothing, used when metrics are disabled
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class NoopNumberingMetrics implements NumberingMetrics {
+
+  @Override
+  public long start() {
+    return 0;
+  }
+
+  @Override
+  public void stop(String timer, String counterId, long start) {
+    // Disabled
+  }
+
+  @Override
+  public void record(String timer, String counterId, long nanos) {
+    // Disabled
+  }
+
+  @Override
+  public void increment(String counter, String counterId) {
+    // Disabled
+  }
+
+}
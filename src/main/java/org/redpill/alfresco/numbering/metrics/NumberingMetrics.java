@@ -0,0 +1,116 @@
+package org.redpill.alfresco.numbering.metrics;
+
+/**
+ * Timers and counters of the numbering module. All metrics are tagged with
+ * the component id, the id of the counter series, and never with option
+ * values or tenant domains, so that the number of meters stays bounded however
+ * many option counters and tenants there are.
+ *
+ * Implementations must be thread safe and should be cheap when disabled, a
+ * disabled implementation returns 0 from start and ignores everything else.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public interface NumberingMetrics {
+
+  /**
+   * Time spent checking that a node may be numbered
+   */
+  public static final String TIMER_COMPONENT_ALLOW = "rl.numbering.component.allow";
+
+  /**
+   * Time spent in the numbering storage as seen by a component, including
+   * locks, transactions and retries
+   */
+  public static final String TIMER_COMPONENT_STORAGE = "rl.numbering.component.storage";
+
+  /**
+   * Time spent decorating numbers
+   */
+  public static final String TIMER_COMPONENT_DECORATOR = "rl.numbering.component.decorator";
+
+  /**
+   * Time spent in the transaction increasing a counter, including retries
+   */
+  public static final String TIMER_STORAGE_TRANSACTION = "rl.numbering.storage.transaction";
+
+  /**
+   * Time spent reserving a block or batch of numbers in the backing storage
+   * of the block, coalescing, sharded and journal storages
+   */
+  public static final String TIMER_STORAGE_BLOCK = "rl.numbering.storage.block";
+
+  /**
+   * Time spent waiting for a journal record to be forced to disk
+   */
+  public static final String TIMER_JOURNAL_FORCE = "rl.numbering.storage.journal.force";
+
+  /**
+   * Time spent waiting for a counter lock
+   */
+  public static final String TIMER_LOCK_WAIT = "rl.numbering.lock.wait";
+
+  /**
+   * Transaction retries while increasing a counter
+   */
+  public static final String COUNTER_TRANSACTION_RETRIES = "rl.numbering.storage.transaction.retries";
+
+  /**
+   * Numbers handed out from a block held in memory, without an update of the
+   * backing storage
+   */
+  public static final String COUNTER_STORAGE_LOCAL = "rl.numbering.storage.local";
+
+  /**
+   * Requests for a number served by the counter update of another thread
+   */
+  public static final String COUNTER_STORAGE_COALESCED = "rl.numbering.storage.coalesced";
+
+  /**
+   * Counters which moved on to a new period
+   */
+  public static final String COUNTER_PERIOD_ROLLOVERS = "rl.numbering.storage.periodic.rollovers";
+
+  /**
+   * Counter node lookups served by the counter cache
+   */
+  public static final String COUNTER_CACHE_HITS = "rl.numbering.cache.counter.hits";
+
+  /**
+   * Counter node lookups not served by the counter cache
+   */
+  public static final String COUNTER_CACHE_MISSES = "rl.numbering.cache.counter.misses";
+
+  /**
+   * Start timing
+   *
+   * @return the start time to pass to stop, 0 when disabled
+   */
+  public long start();
+
+  /**
+   * Stop timing and record the elapsed time
+   *
+   * @param timer The timer name
+   * @param counterId The component id
+   * @param start The value returned by start
+   */
+  public void stop(String timer, String counterId, long start);
+
+  /**
+   * Record an elapsed time
+   *
+   * @param timer The timer name
+   * @param counterId The component id
+   * @param nanos The elapsed time in nanoseconds
+   */
+  public void record(String timer, String counterId, long nanos);
+
+  /**
+   * Increment a counter
+   *
+   * @param counter The counter name
+   * @param counterId The component id
+   */
+  public void increment(String counter, String counterId);
+}
@@ -0,0 +1,37 @@
+package org.redpill.alfresco.numbering.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface for the numbering metrics. Keys are the metric name
+ * followed by the counter or component id in brackets.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public interface NumberingMetricsMXBean {
+
+  /**
+   * @return the value of each counter
+   */
+  public Map<String, Long> getCounters();
+
+  /**
+   * @return the number of recorded times of each timer
+   */
+  public Map<String, Long> getTimerCounts();
+
+  /**
+   * @return the mean time in milliseconds of each timer
+   */
+  public Map<String, Double> getTimerMeanMillis();
+
+  /**
+   * @return the max time in milliseconds of each timer
+   */
+  public Map<String, Double> getTimerMaxMillis();
+
+  /**
+   * Reset all metrics
+   */
+  public void reset();
+}
@@ -1,7 +1,13 @@
 package org.redpill.alfresco.numbering.policy;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.copy.CopyBehaviourCallback;
 import org.alfresco.repo.copy.CopyDetails;
@@ -13,6 +19,7 @@ import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
 import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.policy.JavaBehaviour;
 import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.lock.LockService;
 import org.alfresco.service.cmr.lock.NodeLockedException;
@@ -22,9 +29,12 @@ import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.redpill.alfresco.numbering.component.NodeState;
 import org.redpill.alfresco.numbering.component.NumberingComponent;
+import org.redpill.alfresco.numbering.storage.TransactionMode;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
@@ -41,7 +51,10 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
   protected Boolean isInitialized = false;
   protected QName typeQName;
   protected QName propertyQName;
+  protected boolean batchAtCommit = false;
+  protected AsyncNumberingQueue numberingQueue;
   private final CopyBehaviourCallback copyBehaviourCallback = new DocumentNumberCopyBehaviourCallback();
+  private final String pendingNodesKey = getClass().getName() + ".pendingNodes@" + Integer.toHexString(System.identityHashCode(this));
 
   @Override
   public void register(QName typeQName, QName propertyQName) {
@@ -51,9 +64,19 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
       policyComponent.bindClassBehaviour(OnAddAspectPolicy.QNAME, typeQName, new JavaBehaviour(this, "onAddAspect", NotificationFrequency.TRANSACTION_COMMIT));
       policyComponent.bindClassBehaviour(OnMoveNodePolicy.QNAME, typeQName, new JavaBehaviour(this, "onMoveNode", NotificationFrequency.TRANSACTION_COMMIT));
       policyComponent.bindClassBehaviour(QName.createQName(NamespaceService.ALFRESCO_URI, "getCopyCallback"), typeQName, new JavaBehaviour(this, "getCopyCallback"));
+      if (numberingQueue != null) {
+        numberingQueue.register(getQueueName(), this);
+      }
     }
   }
 
+  /**
+   * @return the name of the asynchronous numbering queue of this policy
+   */
+  protected String getQueueName() {
+    return typeQName.toString() + "|" + propertyQName.toString();
+  }
+
   /**
    * Checks if the component is initalized. When called it will switch to being
    * initialized.
@@ -84,14 +107,15 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
       return false;
     }
 
-    if (!nodeService.exists(nodeRef)) {
+    NodeState state = NodeState.get(nodeService, nodeRef);
+    if (state == null) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Node does not exist. Skipping...");
       }
       return false;
     }
 
-    QName nodeType = nodeService.getType(nodeRef);
+    QName nodeType = state.getType();
     if (ContentModel.TYPE_THUMBNAIL.equals(nodeType)) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Node type is cm:thumbnail. Skipping...");
@@ -99,7 +123,7 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
       return false;
     }
 
-    if (nodeService.hasAspect(nodeRef, ContentModel.ASPECT_WORKING_COPY)) {
+    if (state.hasAspect(ContentModel.ASPECT_WORKING_COPY)) {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Node is working copy. Skipping...");
       }
@@ -128,8 +152,139 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
     if (LOG.isTraceEnabled()) {
       LOG.trace(this.getClass().getName() + " onAddAspect begin, setting " + aspectTypeQName.getLocalName() + " aspect to " + nodeRef);
     }
-    if (allowUpdate(nodeRef)) {
-      setDocumentNumber(nodeRef, false);
+    if (numberingQueue != null) {
+      numberingQueue.enqueue(getQueueName(), nodeRef);
+    } else if (isNumberedAtCommit()) {
+      queueDocumentNumber(nodeRef);
+    } else {
+      numberNode(nodeRef);
+    }
+  }
+
+  /**
+   * Sets the document number on a node if it is allowed to be updated, the
+   * node is read once for both
+   *
+   * @param nodeRef The node
+   */
+  protected void numberNode(NodeRef nodeRef) {
+    boolean opened = NodeState.openScope();
+    try {
+      if (allowUpdate(nodeRef)) {
+        setDocumentNumber(nodeRef, false);
+      }
+    } finally {
+      NodeState.closeScope(opened);
+    }
+  }
+
+  /**
+   * @return true if nodes are numbered just before the transaction commits,
+   * either configured on the policy or by the transaction mode of the
+   * numbering component
+   */
+  protected boolean isNumberedAtCommit() {
+    return batchAtCommit || numberingComponent.getTransactionMode() == TransactionMode.DEFERRED;
+  }
+
+  /**
+   * Queues a node to be numbered before the transaction commits, together
+   * with all other nodes queued by this policy in the transaction
+   *
+   * @param nodeRef The node
+   */
+  protected void queueDocumentNumber(NodeRef nodeRef) {
+    Set<NodeRef> pendingNodes = AlfrescoTransactionSupport.getResource(pendingNodesKey);
+    if (pendingNodes == null) {
+      pendingNodes = new LinkedHashSet<>();
+      AlfrescoTransactionSupport.bindResource(pendingNodesKey, pendingNodes);
+      AlfrescoTransactionSupport.bindListener(new PendingNumbersListener());
+    }
+    pendingNodes.add(nodeRef);
+  }
+
+  /**
+   * Sets document numbers on all nodes which are allowed to be updated and do
+   * not have a number, using a single range reservation for all of them
+   *
+   * @param nodeRefs The nodes
+   * @return the nodes which were not numbered because they are locked, and
+   * may be numbered once they are unlocked
+   */
+  protected Set<NodeRef> setDocumentNumbers(Collection<NodeRef> nodeRefs) {
+    boolean opened = NodeState.openScope();
+    try {
+      List<NodeRef> unnumbered = new ArrayList<>(nodeRefs.size());
+      Set<NodeRef> locked = new LinkedHashSet<>();
+      for (NodeRef nodeRef : nodeRefs) {
+        if (allowUpdate(nodeRef)) {
+          String docNumber = (String) NodeState.get(nodeService, nodeRef).getProperty(propertyQName);
+          if (docNumber == null || docNumber.isEmpty()) {
+            unnumbered.add(nodeRef);
+          }
+        } else if (isLocked(nodeRef)) {
+          locked.add(nodeRef);
+        }
+      }
+      if (unnumbered.isEmpty()) {
+        return locked.isEmpty() ? Collections.<NodeRef>emptySet() : locked;
+      }
+      Map<NodeRef, String> decoratedNextNumbers = numberingComponent.getDecoratedNextNumbers(unnumbered);
+      for (Map.Entry<NodeRef, String> entry : decoratedNextNumbers.entrySet()) {
+        NodeRef nodeRef = entry.getKey();
+        boolean enabled = behaviourFilter.isEnabled(nodeRef);
+        if (enabled) {
+          behaviourFilter.disableBehaviour(nodeRef);
+        }
+        nodeService.setProperty(nodeRef, propertyQName, entry.getValue());
+        NodeState.invalidate(nodeRef);
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("Setting document number to " + entry.getValue() + " for node " + nodeRef.toString());
+        }
+        if (enabled) {
+          behaviourFilter.enableBehaviour(nodeRef);
+        }
+      }
+      return locked;
+    } finally {
+      NodeState.closeScope(opened);
+    }
+  }
+
+  /**
+   * Checks if a node which is not allowed to be updated is only rejected for
+   * now, because it is locked by another user or checked out
+   *
+   * @param nodeRef The node
+   * @return true if the node exists and is locked
+   */
+  protected boolean isLocked(final NodeRef nodeRef) {
+    if (!nodeRef.getStoreRef().equals(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE) || NodeState.get(nodeService, nodeRef) == null) {
+      return false;
+    }
+    try {
+      lockService.checkForLock(nodeRef);
+    } catch (NodeLockedException e) {
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Numbers the nodes queued in the transaction
+   */
+  private class PendingNumbersListener extends TransactionListenerAdapter {
+
+    @Override
+    public void beforeCommit(boolean readOnly) {
+      Set<NodeRef> pendingNodes = AlfrescoTransactionSupport.getResource(pendingNodesKey);
+      AlfrescoTransactionSupport.unbindResource(pendingNodesKey);
+      if (pendingNodes != null && !pendingNodes.isEmpty()) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Numbering " + pendingNodes.size() + " nodes before commit");
+        }
+        setDocumentNumbers(pendingNodes);
+      }
     }
   }
 
@@ -145,24 +300,35 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
     if (enabled) {
       behaviourFilter.disableBehaviour(nodeRef);
     }
-    String docNumber = (String) nodeService.getProperty(nodeRef, propertyQName);
-    if (docNumber == null || docNumber.isEmpty() || forceNewNumber) {
-      String decoratedNextNumber = numberingComponent.getDecoratedNextNumber(nodeRef);
-      nodeService.setProperty(nodeRef, propertyQName, decoratedNextNumber);
-      if (LOG.isTraceEnabled()) {
-        LOG.trace("Setting document number to " + decoratedNextNumber + " for node " + nodeRef.toString());
+    boolean opened = NodeState.openScope();
+    try {
+      NodeState state = NodeState.get(nodeService, nodeRef);
+      String docNumber = state == null ? null : (String) state.getProperty(propertyQName);
+      if (docNumber == null || docNumber.isEmpty() || forceNewNumber) {
+        String decoratedNextNumber = numberingComponent.getDecoratedNextNumber(nodeRef);
+        nodeService.setProperty(nodeRef, propertyQName, decoratedNextNumber);
+        NodeState.invalidate(nodeRef);
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("Setting document number to " + decoratedNextNumber + " for node " + nodeRef.toString());
+        }
+      }
+    } finally {
+      NodeState.closeScope(opened);
+      if (enabled) {
+        behaviourFilter.enableBehaviour(nodeRef);
       }
-    }
-    if (enabled) {
-      behaviourFilter.enableBehaviour(nodeRef);
     }
   }
 
   @Override
   public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
     final NodeRef newNodeRef = newChildAssocRef.getChildRef();
-    if (allowUpdate(newNodeRef)) {
-      setDocumentNumber(newNodeRef, false);
+    if (numberingQueue != null) {
+      numberingQueue.enqueue(getQueueName(), newNodeRef);
+    } else if (isNumberedAtCommit()) {
+      queueDocumentNumber(newNodeRef);
+    } else {
+      numberNode(newNodeRef);
     }
   }
 
@@ -233,6 +399,23 @@ public abstract class AbstractNumberingPolicy implements NumberingPolicy, OnAddA
   }
   
   
+  /**
+   * @param batchAtCommit Set to true to number all nodes of a transaction
+   * together before commit with one range reservation, instead of one storage
+   * call per node. setDocumentNumber is then not called for those nodes.
+   */
+  public void setBatchAtCommit(boolean batchAtCommit) {
+    this.batchAtCommit = batchAtCommit;
+  }
+
+  /**
+   * @param numberingQueue Set to number nodes asynchronously. Nodes are then
+   * only queued when added and numbered later by the queue workers.
+   */
+  public void setNumberingQueue(AsyncNumberingQueue numberingQueue) {
+    this.numberingQueue = numberingQueue;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     Assert.notNull(behaviourFilter);
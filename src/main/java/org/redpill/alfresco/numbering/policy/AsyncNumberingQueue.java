@@ -0,0 +1,467 @@
+package org.redpill.alfresco.numbering.policy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantAdminService;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.redpill.alfresco.numbering.storage.TenantKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Durable queue of nodes waiting for a number. Nodes are queued as attributes
+ * in the transaction that uploads them, so a rolled back upload leaves nothing
+ * in the queue and queued nodes survive restarts.
+ *
+ * A bounded pool of workers drains the queues in batches. Each batch is
+ * numbered by the policy owning the queue with one range reservation, and the
+ * numbered nodes are removed from the queue in the same transaction. A
+ * cluster wide lock makes sure only one node drains a queue at a time.
+ *
+ * Nodes are only removed from the queue once they are numbered or can never
+ * be numbered. Locked nodes and nodes which fail to be numbered stay in the
+ * queue and are retried after a delay which doubles with every attempt. After
+ * maxAttempts they are moved to the dead letter attributes, keyed by
+ * ATTR_DEAD_LETTER and the queue name.
+ *
+ * Every tenant has its own queues, keyed by the queue name qualified by the
+ * tenant domain, and their nodes are numbered in the tenant. The poller drains
+ * the queues of the default domain and of every enabled tenant.
+ *
+ * The workers and the poller are started when the first policy registers, so
+ * the queue costs no threads unless a policy numbers asynchronously.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class AsyncNumberingQueue implements InitializingBean, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncNumberingQueue.class);
+
+  public static final String ATTR_QUEUE = "RL_NUMBERING_QUEUE";
+  public static final String ATTR_ATTEMPTS = "RL_NUMBERING_QUEUE_ATTEMPTS";
+  public static final String ATTR_DEAD_LETTER = "RL_NUMBERING_QUEUE_DEAD_LETTER";
+
+  protected static final int DEFAULT_WORKERS = 2;
+  protected static final int DEFAULT_BATCH_SIZE = 100;
+  protected static final long DEFAULT_POLL_INTERVAL = 60000L;
+  protected static final long DEFAULT_LOCK_TTL = 30000L;
+  protected static final long DEFAULT_RETRY_DELAY = 60000L;
+  protected static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+  protected AttributeService attributeService;
+  protected JobLockService jobLockService;
+  protected RetryingTransactionHelper retryingTransactionHelper;
+  protected TenantAdminService tenantAdminService;
+  protected int workers = DEFAULT_WORKERS;
+  protected int batchSize = DEFAULT_BATCH_SIZE;
+  protected long pollInterval = DEFAULT_POLL_INTERVAL;
+  protected long lockTTL = DEFAULT_LOCK_TTL;
+  protected long retryDelay = DEFAULT_RETRY_DELAY;
+  protected int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  protected ThreadFactory threadFactory;
+
+  protected final ConcurrentMap<String, AbstractNumberingPolicy> policies = new ConcurrentHashMap<>();
+  protected final ConcurrentMap<String, AtomicBoolean> draining = new ConcurrentHashMap<>();
+  protected volatile ExecutorService workerPool;
+  protected ScheduledExecutorService poller;
+
+  /**
+   * Register the policy which numbers the nodes of a queue
+   *
+   * @param queueName The queue name
+   * @param policy The policy
+   */
+  public void register(String queueName, AbstractNumberingPolicy policy) {
+    policies.put(queueName, policy);
+    start();
+  }
+
+  /**
+   * Queue a node in the current transaction, in the queue of the current
+   * tenant. The workers are signalled when the transaction commits.
+   *
+   * @param queueName The queue name
+   * @param nodeRef The node to number
+   */
+  public void enqueue(final String queueName, NodeRef nodeRef) {
+    final String domain = TenantKeys.getCurrentDomain();
+    attributeService.setAttribute(System.currentTimeMillis(), ATTR_QUEUE, TenantKeys.getTenantKey(domain, queueName), nodeRef.toString());
+    String signalKey = AsyncNumberingQueue.class.getName() + ".signal." + queueName;
+    if (AlfrescoTransactionSupport.getResource(signalKey) == null) {
+      AlfrescoTransactionSupport.bindResource(signalKey, Boolean.TRUE);
+      AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+        @Override
+        public void afterCommit() {
+          signal(queueName, domain);
+        }
+      });
+    }
+  }
+
+  /**
+   * Start draining the queue of a tenant unless it is already being drained
+   *
+   * @param queueName The queue name
+   * @param domain The tenant domain
+   */
+  public void signal(final String queueName, final String domain) {
+    if (workerPool == null || !policies.containsKey(queueName)) {
+      return;
+    }
+    final AtomicBoolean running = draining.computeIfAbsent(TenantKeys.getTenantKey(domain, queueName), key -> new AtomicBoolean());
+    if (!running.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      workerPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            drain(queueName, domain);
+          } catch (RuntimeException e) {
+            LOG.error("Failed to drain numbering queue " + TenantKeys.getTenantKey(domain, queueName), e);
+          } finally {
+            running.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      running.set(false);
+    }
+  }
+
+  /**
+   * Number the queued nodes of the queue of a tenant in batches until the
+   * queue is empty
+   *
+   * @param queueName The queue name
+   * @param domain The tenant domain
+   * @return the number of nodes taken off the queue
+   */
+  protected int drain(final String queueName, final String domain) {
+    final AbstractNumberingPolicy policy = policies.get(queueName);
+    final String queueKey = TenantKeys.getTenantKey(domain, queueName);
+    String lockName = ATTR_QUEUE + "_" + queueName;
+    if (!TenantService.DEFAULT_DOMAIN.equals(domain)) {
+      lockName += "_" + domain;
+    }
+    final QName lockQName = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, lockName);
+    String lockToken;
+    try {
+      lockToken = jobLockService.getLock(lockQName, lockTTL);
+    } catch (LockAcquisitionException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Numbering queue " + queueKey + " is drained by another server");
+      }
+      return 0;
+    }
+    int drained = 0;
+    try {
+      while (true) {
+        final List<NodeRef> batch = readBatch(queueKey);
+        if (batch.isEmpty()) {
+          return drained;
+        }
+        try {
+          numberBatch(queueKey, domain, policy, batch);
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to number a batch of " + batch.size() + " nodes of queue " + queueKey + ", numbering them one by one", e);
+          for (NodeRef nodeRef : batch) {
+            try {
+              numberBatch(queueKey, domain, policy, Collections.singletonList(nodeRef));
+            } catch (RuntimeException nodeException) {
+              LOG.error("Failed to number " + nodeRef + " of queue " + queueKey, nodeException);
+              retryLater(queueKey, nodeRef);
+            }
+          }
+        }
+        drained += batch.size();
+        jobLockService.refreshLock(lockToken, lockQName, lockTTL);
+      }
+    } finally {
+      jobLockService.releaseLock(lockToken, lockQName);
+      if (LOG.isDebugEnabled() && drained > 0) {
+        LOG.debug("Drained " + drained + " nodes from numbering queue " + queueKey);
+      }
+    }
+  }
+
+  /**
+   * The value of a queued node is the time it may be numbered, the time it
+   * was queued or the time of its next retry
+   *
+   * @param queueKey The queue name qualified by the tenant domain
+   * @return up to batchSize of the queued nodes which are due
+   */
+  protected List<NodeRef> readBatch(final String queueKey) {
+    return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<List<NodeRef>>() {
+      @Override
+      public List<NodeRef> execute() throws Throwable {
+        final List<NodeRef> batch = new ArrayList<>(batchSize);
+        final long now = System.currentTimeMillis();
+        attributeService.getAttributes(new AttributeService.AttributeQueryCallback() {
+          @Override
+          public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+            if (!(value instanceof Long) || (Long) value <= now) {
+              batch.add(new NodeRef((String) keys[2]));
+            }
+            return batch.size() < batchSize;
+          }
+        }, ATTR_QUEUE, queueKey);
+        return batch;
+      }
+    }, true, true);
+  }
+
+  /**
+   * Number a batch of nodes and remove them from the queue in one
+   * transaction as the system user of the tenant, locked nodes stay in the
+   * queue to be retried
+   *
+   * @param queueKey The queue name qualified by the tenant domain
+   * @param domain The tenant domain
+   * @param policy The policy numbering the nodes
+   * @param batch The nodes
+   */
+  protected void numberBatch(final String queueKey, final String domain, final AbstractNumberingPolicy policy, final List<NodeRef> batch) {
+    TenantUtil.runAsSystemTenant(new TenantUtil.TenantRunAsWork<Void>() {
+      @Override
+      public Void doWork() throws Exception {
+        return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+          @Override
+          public Void execute() throws Throwable {
+            Set<NodeRef> locked = policy.setDocumentNumbers(batch);
+            for (NodeRef nodeRef : batch) {
+              if (locked.contains(nodeRef)) {
+                deferNode(queueKey, nodeRef);
+              } else {
+                dequeueNode(queueKey, nodeRef);
+              }
+            }
+            return null;
+          }
+        }, false, true);
+      }
+    }, domain);
+  }
+
+  /**
+   * Keep a node which failed to be numbered in the queue to be retried
+   *
+   * @param queueKey The queue name qualified by the tenant domain
+   * @param nodeRef The node
+   */
+  protected void retryLater(final String queueKey, final NodeRef nodeRef) {
+    retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+      @Override
+      public Void execute() throws Throwable {
+        deferNode(queueKey, nodeRef);
+        return null;
+      }
+    }, false, true);
+  }
+
+  /**
+   * Count an attempt to number a node and postpone its next attempt, or move
+   * it to the dead letters once maxAttempts is reached
+   *
+   * @param queueKey The queue name qualified by the tenant domain
+   * @param nodeRef The node
+   */
+  protected void deferNode(final String queueKey, final NodeRef nodeRef) {
+    String node = nodeRef.toString();
+    Serializable previousAttempts = attributeService.getAttribute(ATTR_ATTEMPTS, queueKey, node);
+    int attempts = (previousAttempts instanceof Integer ? (Integer) previousAttempts : 0) + 1;
+    if (attempts >= maxAttempts) {
+      LOG.warn("Gave up numbering " + nodeRef + " of queue " + queueKey + " after " + attempts + " attempts, moving it to the dead letters");
+      dequeueNode(queueKey, nodeRef);
+      attributeService.setAttribute(System.currentTimeMillis(), ATTR_DEAD_LETTER, queueKey, node);
+      return;
+    }
+    long delay = retryDelay << Math.min(attempts - 1, 20);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Retrying " + nodeRef + " of queue " + queueKey + " in " + delay + " ms, attempt " + attempts);
+    }
+    attributeService.setAttribute(attempts, ATTR_ATTEMPTS, queueKey, node);
+    attributeService.setAttribute(System.currentTimeMillis() + delay, ATTR_QUEUE, queueKey, node);
+  }
+
+  /**
+   * Remove a node from the queue along with its attempts
+   *
+   * @param queueKey The queue name qualified by the tenant domain
+   * @param nodeRef The node
+   */
+  protected void dequeueNode(final String queueKey, final NodeRef nodeRef) {
+    String node = nodeRef.toString();
+    attributeService.removeAttribute(ATTR_QUEUE, queueKey, node);
+    attributeService.removeAttribute(ATTR_ATTEMPTS, queueKey, node);
+  }
+
+  /**
+   * Starts the workers and the poller which picks up nodes queued before a
+   * restart or on other servers, unless they are already started. The first
+   * poll is one poll interval after the start, when the repository has
+   * started.
+   */
+  protected synchronized void start() {
+    if (workerPool != null) {
+      return;
+    }
+    ThreadFactory factory = threadFactory != null ? threadFactory : new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "rl-numbering-queue-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    poller = Executors.newSingleThreadScheduledExecutor(factory);
+    poller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (String domain : getDomains()) {
+            for (String queueName : policies.keySet()) {
+              signal(queueName, domain);
+            }
+          }
+        } catch (RuntimeException e) {
+          LOG.error("Failed to poll the numbering queues", e);
+        }
+      }
+    }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    workerPool = Executors.newFixedThreadPool(workers, factory);
+  }
+
+  /**
+   * @return the default domain and the domains of the enabled tenants
+   */
+  protected List<String> getDomains() {
+    return AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<List<String>>() {
+      @Override
+      public List<String> doWork() throws Exception {
+        return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<List<String>>() {
+          @Override
+          public List<String> execute() throws Throwable {
+            return TenantKeys.getEnabledDomains(tenantAdminService);
+          }
+        }, true, true);
+      }
+    });
+  }
+
+  @Override
+  public synchronized void destroy() {
+    if (poller != null) {
+      poller.shutdownNow();
+    }
+    if (workerPool != null) {
+      workerPool.shutdown();
+      try {
+        workerPool.awaitTermination(lockTTL, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public void setAttributeService(AttributeService attributeService) {
+    this.attributeService = attributeService;
+  }
+
+  public void setJobLockService(JobLockService jobLockService) {
+    this.jobLockService = jobLockService;
+  }
+
+  public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+    this.retryingTransactionHelper = retryingTransactionHelper;
+  }
+
+  public void setTenantAdminService(TenantAdminService tenantAdminService) {
+    this.tenantAdminService = tenantAdminService;
+  }
+
+  public void setWorkers(int workers) {
+    this.workers = workers;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public void setPollInterval(long pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  public void setLockTTL(long lockTTL) {
+    this.lockTTL = lockTTL;
+  }
+
+  /**
+   * @param retryDelay The delay in milliseconds before a node which could not
+   * be numbered is retried the first time, doubled for every further attempt
+   */
+  public void setRetryDelay(long retryDelay) {
+    this.retryDelay = retryDelay;
+  }
+
+  /**
+   * @param maxAttempts The number of attempts to number a node before it is
+   * moved to the dead letters
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  /**
+   * @param threadFactory Creates the worker threads, e.g. a virtual thread
+   * factory on Java 21. Defaults to daemon platform threads.
+   */
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(attributeService, "you must provide an instance of AttributeService");
+    Assert.notNull(jobLockService, "you must provide an instance of JobLockService");
+    Assert.notNull(retryingTransactionHelper, "you must provide an instance of RetryingTransactionHelper");
+    Assert.notNull(tenantAdminService, "you must provide an instance of TenantAdminService");
+    Assert.isTrue(workers > 0, "workers must be at least 1");
+    Assert.isTrue(batchSize > 0, "batchSize must be at least 1");
+    Assert.isTrue(pollInterval > 0, "pollInterval must be positive");
+    Assert.isTrue(retryDelay > 0, "retryDelay must be positive");
+    Assert.isTrue(maxAttempts > 0, "maxAttempts must be at least 1");
+  }
+
+}
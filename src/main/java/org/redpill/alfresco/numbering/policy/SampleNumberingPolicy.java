@@ -4,6 +4,7 @@ import org.alfresco.model.ContentModel;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.redpill.alfresco.numbering.component.NodeState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -16,7 +17,7 @@ public class SampleNumberingPolicy extends AbstractNumberingPolicy implements In
   protected boolean allowUpdate(final NodeRef nodeRef) {
 
     if (super.allowUpdate(nodeRef)) {
-      QName nodeType = nodeService.getType(nodeRef);
+      QName nodeType = NodeState.get(nodeService, nodeRef).getType();
       return dictionaryService.isSubClass(nodeType, ContentModel.TYPE_CONTENT);
     }
     return false;
@@ -1,17 +1,33 @@
 package org.redpill.alfresco.numbering.storage;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
 /**
- * EXPERIMENTAL! Store numbers using attribute service. Currently not well
- * tested. Do not use in production. It is not cluster safe.
+ * Store numbers using attribute service. Each counter is guarded by a cluster
+ * wide lock from the job lock service which is held until the counter
+ * transaction has committed. The attribute service has no conditional
+ * update, so the lock is what keeps the numbers unique.
+ *
+ * With the JOIN and DEFERRED transaction modes the counter attribute is
+ * updated in the transaction of the caller and the counter lock is held until
+ * that transaction completes, so concurrent callers of the same counter wait
+ * for it.
+ *
+ * The attributes are shared by all tenants, so the attribute key of a
+ * counter of another tenant than the default is qualified by its tenant
+ * domain.
  *
  * @author Marcus Svartmark - Redpill Linpro AB
  */
@@ -20,72 +36,258 @@ public class AttributeNumberingStorageImpl implements NumberingStorage, Initiali
   private static final Logger LOG = LoggerFactory.getLogger(AttributeNumberingStorageImpl.class);
 
   protected static long DEFAULT_LOCK_TTL = 30000L;
+  protected static long DEFAULT_LOCK_RETRY_WAIT = 100L;
+  protected static int DEFAULT_LOCK_RETRY_COUNT = 300;
   protected ThreadLocal<String> lockThreadLocal = new ThreadLocal<String>();
 
   protected long lockTTL = DEFAULT_LOCK_TTL;
+  protected long lockRetryWait = DEFAULT_LOCK_RETRY_WAIT;
+  protected int lockRetryCount = DEFAULT_LOCK_RETRY_COUNT;
 
   protected JobLockService jobLockService;
   protected RetryingTransactionHelper retryingTransactionHelper;
 
   protected AttributeService attributeService;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
 
   @Override
   public long getNextNumber(final long initialValue, final String id) {
-    QName lockName = QName.createQName(ATTR_ID + "." + id + ".lock");
-    jobLockService.getLock(lockName, lockTTL, 100, 100);
-    return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
-      @Override
-      public Long execute() throws Throwable {
+    return reserveRange(initialValue, id, 1);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    Assert.isTrue(count > 0, "Count must be at least 1");
+    return increaseCounter(initialValue, id, TenantKeys.getTenantKey(id), count, TransactionMode.REQUIRES_NEW);
+  }
+
+  /**
+   * this method generate the next number based on optionValue, option value is based on selected value from drop down list
+   */
+  @Override
+  public long getNextNumber(final long initialValue, final String ids,final String optionValue) {
+    return reserveRange(initialValue, ids, optionValue, 1);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String ids, final String optionValue, final long count) {
+    Assert.isTrue(count > 0, "Count must be at least 1");
+    return increaseCounter(initialValue, ids, TenantKeys.getTenantKey(optionValue), count, TransactionMode.REQUIRES_NEW);
+  }
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id, final TransactionMode transactionMode) {
+    return reserveRange(initialValue, id, 1, transactionMode);
+  }
+
+  @Override
+  public long getNextNumber(final long initialValue, final String ids, final String optionValue, final TransactionMode transactionMode) {
+    return reserveRange(initialValue, ids, optionValue, 1, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count, final TransactionMode transactionMode) {
+    Assert.isTrue(count > 0, "Count must be at least 1");
+    return increaseCounter(initialValue, id, TenantKeys.getTenantKey(id), count, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String ids, final String optionValue, final long count, final TransactionMode transactionMode) {
+    Assert.isTrue(count > 0, "Count must be at least 1");
+    return increaseCounter(initialValue, ids, TenantKeys.getTenantKey(optionValue), count, transactionMode);
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    createCounter(initialValue, id, TenantKeys.getTenantKey(id));
+  }
 
-        if (!attributeService.exists(ATTR_ID, id)) {
+  @Override
+  public void ensureCounter(final long startValue, final String id, final String optionValue) {
+    createCounter(startValue, id, TenantKeys.getTenantKey(optionValue));
+  }
+
+  /**
+   * Create the counter attribute if it does not exist. The first number of
+   * the counter is still initialValue.
+   *
+   * @param initialValue the initial value of the counter
+   * @param id the id of the counter, which tags the metrics
+   * @param key the attribute key of the counter
+   */
+  protected void createCounter(final long initialValue, final String id, final String key) {
+    doInCounterTransaction(id, key, new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+      @Override
+      public Void execute() throws Throwable {
+        if (!attributeService.exists(ATTR_ID, key)) {
+          attributeService.createAttribute(initialValue - 1, ATTR_ID, key);
           if (LOG.isDebugEnabled()) {
-            LOG.debug("Creating attribute for counter with id " + ATTR_ID + "." + id + ": " + initialValue);
-          }
-          attributeService.createAttribute(initialValue, ATTR_ID, id);
-          return initialValue;
-        } else {
-          Long attributeValue = (Long) attributeService.getAttribute(ATTR_ID, id);
-
-          attributeService.setAttribute(++attributeValue, ATTR_ID, id);
-          if (LOG.isTraceEnabled()) {
-            LOG.trace("Increased counter with id " + ATTR_ID + "." + id + " to " + attributeValue);
+            LOG.debug("Created attribute for counter with id " + ATTR_ID + "." + key);
           }
-          return attributeValue;
         }
+        return null;
       }
-    }, false, true);
-
+    });
   }
 
   /**
-   * this method generate the next number based on optionValue, option value is based on selected value from drop down list
+   * Increase the counter attribute in a new transaction guarded by the
+   * counter lock, or in the transaction of the caller holding the counter
+   * lock until it completes
+   *
+   * @param initialValue the initial value if the attribute does not exist
+   * @param id the id of the counter, which tags the metrics
+   * @param key the attribute key of the counter
+   * @param count the amount to increase the counter with
+   * @param transactionMode how the counter update relates to the transaction
+   * of the caller
+   * @return the first number of the reserved range
    */
-  @Override
-  public long getNextNumber(final long initialValue, final String ids,final String optionValue) {
-    QName lockName = QName.createQName(ATTR_ID + "." + optionValue + ".lock");
-    jobLockService.getLock(lockName, lockTTL, 100, 100);
-    return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+  protected long increaseCounter(final long initialValue, final String id, final String key, final long count, final TransactionMode transactionMode) {
+    Assert.notNull(transactionMode, "you must provide a transaction mode");
+    RetryingTransactionHelper.RetryingTransactionCallback<Long> callback = new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+      private boolean retry = false;
+
       @Override
       public Long execute() throws Throwable {
+        if (retry) {
+          metrics.increment(NumberingMetrics.COUNTER_TRANSACTION_RETRIES, id);
+        }
+        retry = true;
+        return increaseCounterAttribute(initialValue, key, count);
+      }
+    };
+    if (transactionMode.joinsTransaction()) {
+      long start = metrics.start();
+      Long firstValue = retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+        @Override
+        public Long execute() throws Throwable {
+          lockUntilCompletion(id, key);
+          return callback.execute();
+        }
+      }, false, false);
+      metrics.stop(NumberingMetrics.TIMER_STORAGE_TRANSACTION, id, start);
+      return firstValue;
+    }
+    return doInCounterTransaction(id, key, callback);
+  }
 
-        if (!attributeService.exists(ATTR_ID, optionValue)) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Creating attribute for counter with id " + ATTR_ID + "." + optionValue + ": " + initialValue);
-          }
-          attributeService.createAttribute(initialValue, ATTR_ID, optionValue);
-          return initialValue;
-        } else {
-          Long attributeValue = (Long) attributeService.getAttribute(ATTR_ID, optionValue);
-
-          attributeService.setAttribute(++attributeValue, ATTR_ID, optionValue);
-          if (LOG.isTraceEnabled()) {
-            LOG.trace("Increased counter with id " + ATTR_ID + "." + optionValue + " to " + attributeValue);
-          }
-          return attributeValue;
+  /**
+   * Run work on a counter attribute in a new transaction, guarded by the
+   * counter lock
+   *
+   * @param <T> the result type
+   * @param id the id of the counter, which tags the metrics
+   * @param key the attribute key of the counter
+   * @param callback the work to run
+   * @return the result of the callback
+   */
+  protected <T> T doInCounterTransaction(final String id, final String key, RetryingTransactionHelper.RetryingTransactionCallback<T> callback) {
+    final QName lockName = getLockName(key);
+    long lockStart = metrics.start();
+    final String lockToken = jobLockService.getLock(lockName, lockTTL, lockRetryWait, lockRetryCount);
+    metrics.stop(NumberingMetrics.TIMER_LOCK_WAIT, id, lockStart);
+    final AtomicBoolean active = new AtomicBoolean(true);
+    try {
+      keepLockAlive(lockToken, lockName, key, active);
+      long start = metrics.start();
+      T result = retryingTransactionHelper.doInTransaction(callback, false, true);
+      metrics.stop(NumberingMetrics.TIMER_STORAGE_TRANSACTION, id, start);
+      return result;
+    } finally {
+      active.set(false);
+      jobLockService.releaseLock(lockToken, lockName);
+    }
+  }
+
+  /**
+   * Take the counter lock for the rest of the current transaction, unless
+   * the transaction already holds it. The lock is released when the
+   * transaction commits or rolls back.
+   *
+   * @param id the id of the counter, which tags the metrics
+   * @param key the attribute key of the counter
+   */
+  protected void lockUntilCompletion(final String id, final String key) {
+    final String resourceKey = AttributeNumberingStorageImpl.class.getName() + ".lock." + key;
+    if (AlfrescoTransactionSupport.getResource(resourceKey) != null) {
+      return;
+    }
+    final QName lockName = getLockName(key);
+    long lockStart = metrics.start();
+    final String lockToken = jobLockService.getLock(lockName, lockTTL, lockRetryWait, lockRetryCount);
+    metrics.stop(NumberingMetrics.TIMER_LOCK_WAIT, id, lockStart);
+    final AtomicBoolean active = new AtomicBoolean(true);
+    AlfrescoTransactionSupport.bindResource(resourceKey, lockToken);
+    AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+      @Override
+      public void afterCommit() {
+        release();
+      }
+
+      @Override
+      public void afterRollback() {
+        release();
+      }
+
+      private void release() {
+        active.set(false);
+        jobLockService.releaseLock(lockToken, lockName);
+      }
+    });
+    keepLockAlive(lockToken, lockName, key, active);
+  }
+
+  /**
+   * Keep a counter lock alive for as long as it is active
+   */
+  protected void keepLockAlive(final String lockToken, final QName lockName, final String key, final AtomicBoolean active) {
+    jobLockService.refreshLock(lockToken, lockName, lockTTL, new JobLockService.JobLockRefreshCallback() {
+      @Override
+      public boolean isActive() {
+        return active.get();
+      }
+
+      @Override
+      public void lockReleased() {
+        if (active.get()) {
+          LOG.warn("Lock " + lockName + " was released before counter " + key + " was updated");
         }
       }
-    }, false, true);
+    });
+  }
+
+  protected QName getLockName(final String key) {
+    return QName.createQName(ATTR_ID + "." + key + ".lock");
+  }
+
+  /**
+   * Increase the counter attribute, creating it if it does not exist
+   *
+   * @param initialValue the initial value if the attribute does not exist
+   * @param key the attribute key of the counter
+   * @param count the amount to increase the counter with
+   * @return the first number of the reserved range
+   */
+  protected long increaseCounterAttribute(final long initialValue, final String key, final long count) {
+    if (!attributeService.exists(ATTR_ID, key)) {
+      long lastValue = initialValue + count - 1;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Creating attribute for counter with id " + ATTR_ID + "." + key + ": " + lastValue);
+      }
+      attributeService.createAttribute(lastValue, ATTR_ID, key);
+      return initialValue;
+    } else {
+      Long attributeValue = (Long) attributeService.getAttribute(ATTR_ID, key);
+      long firstValue = attributeValue + 1;
+      attributeValue += count;
 
+      attributeService.setAttribute(attributeValue, ATTR_ID, key);
+      if (LOG.isTraceEnabled()) {
+        LOG.trace("Increased counter with id " + ATTR_ID + "." + key + " to " + attributeValue);
+      }
+      return firstValue;
+    }
   }
 
   
@@ -102,11 +304,32 @@ public class AttributeNumberingStorageImpl implements NumberingStorage, Initiali
     this.attributeService = attributeService;
   }
 
+  /**
+   * @param lockTTL the time to live of the counter lock, it is refreshed while
+   * the counter is updated
+   */
+  public void setLockTTL(long lockTTL) {
+    this.lockTTL = lockTTL;
+  }
+
+  public void setLockRetryWait(long lockRetryWait) {
+    this.lockRetryWait = lockRetryWait;
+  }
+
+  public void setLockRetryCount(int lockRetryCount) {
+    this.lockRetryCount = lockRetryCount;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     Assert.notNull(jobLockService);
     Assert.notNull(retryingTransactionHelper);
     Assert.notNull(attributeService);
+    Assert.notNull(metrics);
   }
 
 }
@@ -0,0 +1,222 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Store numbers by reserving blocks of numbers in a backing storage. A block
+ * is reserved with a single update of the backing counter and the numbers of
+ * the block are then handed out from memory. Blocks are always reserved in a
+ * transaction of their own, since their numbers are handed out to callers in
+ * other transactions. Every tenant has its own blocks.
+ *
+ * Numbers which are left in a block when the repository is stopped are never
+ * handed out, which leaves gaps in the series. Numbers are unique but only
+ * increasing per repository instance when running in a cluster. Set gapless to
+ * true for series where gaps are not acceptable, every number is then
+ * persisted in the backing storage.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class BlockNumberingStorageImpl implements NumberingStorage, InitializingBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockNumberingStorageImpl.class);
+
+  protected static final long DEFAULT_BLOCK_SIZE = 100L;
+
+  protected NumberingStorage numberingStorage;
+  protected long blockSize = DEFAULT_BLOCK_SIZE;
+  protected boolean gapless = false;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+
+  protected final ConcurrentMap<String, Block> blocks = new ConcurrentHashMap<>();
+  protected final ConcurrentMap<String, Block> optionBlocks = new ConcurrentHashMap<>();
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id) {
+    if (gapless) {
+      return numberingStorage.getNextNumber(initialValue, id);
+    }
+    Block block = blocks.computeIfAbsent(TenantKeys.getTenantKey(id), key -> new Block(key, id));
+    return block.next(new BlockReservation() {
+      @Override
+      public long reserve() {
+        return numberingStorage.reserveRange(initialValue, id, blockSize, TransactionMode.REQUIRES_NEW);
+      }
+    });
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue) {
+    if (gapless) {
+      return numberingStorage.getNextNumber(startValue, id, optionValue);
+    }
+    Block block = optionBlocks.computeIfAbsent(TenantKeys.getTenantKey(id + "/" + optionValue), key -> new Block(key, id));
+    return block.next(new BlockReservation() {
+      @Override
+      public long reserve() {
+        return numberingStorage.reserveRange(startValue, id, optionValue, blockSize, TransactionMode.REQUIRES_NEW);
+      }
+    });
+  }
+
+  /**
+   * Ranges are always reserved directly in the backing storage since the
+   * remainder of the current block is not guaranteed to be large enough.
+   */
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    return numberingStorage.reserveRange(initialValue, id, count);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count) {
+    return numberingStorage.reserveRange(startValue, id, optionValue, count);
+  }
+
+  /**
+   * Numbers handed out from a block were reserved and committed in a
+   * transaction of their own, only gapless numbers and ranges are reserved in
+   * the given mode
+   */
+  @Override
+  public long getNextNumber(final long initialValue, final String id, final TransactionMode transactionMode) {
+    if (gapless) {
+      return numberingStorage.getNextNumber(initialValue, id, transactionMode);
+    }
+    return getNextNumber(initialValue, id);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue, final TransactionMode transactionMode) {
+    if (gapless) {
+      return numberingStorage.getNextNumber(startValue, id, optionValue, transactionMode);
+    }
+    return getNextNumber(startValue, id, optionValue);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count, final TransactionMode transactionMode) {
+    return numberingStorage.reserveRange(initialValue, id, count, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count, final TransactionMode transactionMode) {
+    return numberingStorage.reserveRange(startValue, id, optionValue, count, transactionMode);
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    numberingStorage.ensureCounter(initialValue, id);
+  }
+
+  @Override
+  public void ensureCounter(final long startValue, final String id, final String optionValue) {
+    numberingStorage.ensureCounter(startValue, id, optionValue);
+  }
+
+  /**
+   * Reserves a new block in the backing storage
+   */
+  protected interface BlockReservation {
+
+    /**
+     * @return the first number of the reserved block
+     */
+    long reserve();
+  }
+
+  /**
+   * A block of numbers for a single counter. The current range is replaced as
+   * a whole when exhausted so that a thread never hands out a number from a
+   * range it did not read.
+   */
+  protected class Block {
+
+    private final String key;
+    private final String id;
+    private volatile Range current;
+
+    protected Block(String key, String id) {
+      this.key = key;
+      this.id = id;
+    }
+
+    protected long next(BlockReservation reservation) {
+      Range range = current;
+      while (true) {
+        if (range != null) {
+          long number = range.next.getAndIncrement();
+          if (number <= range.last) {
+            metrics.increment(NumberingMetrics.COUNTER_STORAGE_LOCAL, id);
+            return number;
+          }
+        }
+        synchronized (this) {
+          if (current == range) {
+            long start = metrics.start();
+            long first = reservation.reserve();
+            metrics.stop(NumberingMetrics.TIMER_STORAGE_BLOCK, id, start);
+            current = new Range(first, first + blockSize - 1);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Reserved block " + first + "-" + (first + blockSize - 1) + " for counter " + key);
+            }
+          }
+          range = current;
+        }
+      }
+    }
+  }
+
+  protected static class Range {
+
+    private final AtomicLong next;
+    private final long last;
+
+    protected Range(long first, long last) {
+      this.next = new AtomicLong(first);
+      this.last = last;
+    }
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param numberingStorage the storage to reserve blocks in
+   */
+  public void setNumberingStorage(NumberingStorage numberingStorage) {
+    this.numberingStorage = numberingStorage;
+  }
+
+  /**
+   * @param blockSize the number of numbers to reserve with each update of the
+   * backing storage
+   */
+  public void setBlockSize(long blockSize) {
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * @param gapless set to true to persist every number in the backing storage
+   */
+  public void setGapless(boolean gapless) {
+    this.gapless = gapless;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(numberingStorage);
+    Assert.notNull(metrics);
+    Assert.isTrue(blockSize > 0, "Block size must be at least 1");
+  }
+
+}
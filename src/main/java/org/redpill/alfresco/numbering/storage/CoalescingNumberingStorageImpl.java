@@ -0,0 +1,235 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Coalesces concurrent requests for numbers from the same counter. Requests
+ * are queued per counter and the thread holding the combining lock reserves a
+ * range for all queued requests with a single update of the backing storage,
+ * handing each waiting thread its own number in queue order. Under contention
+ * N transactions on the backing storage therefore become one.
+ *
+ * Each batch is reserved in a transaction of its own, since the numbers of a
+ * batch are handed to threads in other transactions. Requests which join the
+ * transaction of the caller are therefore passed on to the backing storage
+ * with their transaction mode and never coalesced. Requests are only
+ * combined with requests of the same tenant, so that the batch is reserved in
+ * the tenant of every thread waiting for it.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class CoalescingNumberingStorageImpl implements NumberingStorage, InitializingBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CoalescingNumberingStorageImpl.class);
+
+  protected static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+  protected NumberingStorage numberingStorage;
+  protected int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+
+  protected final ConcurrentMap<String, Combiner> combiners = new ConcurrentHashMap<>();
+  protected final ConcurrentMap<String, Combiner> optionCombiners = new ConcurrentHashMap<>();
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id) {
+    Combiner combiner = combiners.computeIfAbsent(TenantKeys.getTenantKey(id), key -> new Combiner(key, id));
+    return combiner.next(new RangeReservation() {
+      @Override
+      public long reserve(long count) {
+        return numberingStorage.reserveRange(initialValue, id, count, TransactionMode.REQUIRES_NEW);
+      }
+    });
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue) {
+    Combiner combiner = optionCombiners.computeIfAbsent(TenantKeys.getTenantKey(id + "/" + optionValue), key -> new Combiner(key, id));
+    return combiner.next(new RangeReservation() {
+      @Override
+      public long reserve(long count) {
+        return numberingStorage.reserveRange(startValue, id, optionValue, count, TransactionMode.REQUIRES_NEW);
+      }
+    });
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    return numberingStorage.reserveRange(initialValue, id, count);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count) {
+    return numberingStorage.reserveRange(startValue, id, optionValue, count);
+  }
+
+  /**
+   * Only requests in a transaction of their own are coalesced, since a batch
+   * is reserved in a transaction of its own. Requests which join the
+   * transaction of the caller update the backing storage in that transaction.
+   */
+  @Override
+  public long getNextNumber(final long initialValue, final String id, final TransactionMode transactionMode) {
+    if (transactionMode.joinsTransaction()) {
+      return numberingStorage.getNextNumber(initialValue, id, transactionMode);
+    }
+    return getNextNumber(initialValue, id);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue, final TransactionMode transactionMode) {
+    if (transactionMode.joinsTransaction()) {
+      return numberingStorage.getNextNumber(startValue, id, optionValue, transactionMode);
+    }
+    return getNextNumber(startValue, id, optionValue);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count, final TransactionMode transactionMode) {
+    return numberingStorage.reserveRange(initialValue, id, count, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count, final TransactionMode transactionMode) {
+    return numberingStorage.reserveRange(startValue, id, optionValue, count, transactionMode);
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    numberingStorage.ensureCounter(initialValue, id);
+  }
+
+  @Override
+  public void ensureCounter(final long startValue, final String id, final String optionValue) {
+    numberingStorage.ensureCounter(startValue, id, optionValue);
+  }
+
+  /**
+   * Reserves a range in the backing storage
+   */
+  protected interface RangeReservation {
+
+    /**
+     * @param count the size of the range
+     * @return the first number of the reserved range
+     */
+    long reserve(long count);
+  }
+
+  /**
+   * A request for a number. Fields are written and read while holding the
+   * combining lock of the counter.
+   */
+  protected static class Request {
+
+    private boolean done = false;
+    private long number;
+    private RuntimeException failure;
+
+    protected long get() {
+      if (failure != null) {
+        throw failure;
+      }
+      return number;
+    }
+  }
+
+  /**
+   * Queue and combining lock of a single counter
+   */
+  protected class Combiner {
+
+    private final String key;
+    private final String id;
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    protected Combiner(String key, String id) {
+      this.key = key;
+      this.id = id;
+    }
+
+    protected long next(RangeReservation reservation) {
+      Request request = new Request();
+      pending.add(request);
+      lock.lock();
+      try {
+        //Another thread may already have served this request while we waited for the lock
+        while (!request.done) {
+          combine(reservation);
+        }
+      } finally {
+        lock.unlock();
+      }
+      return request.get();
+    }
+
+    private void combine(RangeReservation reservation) {
+      List<Request> batch = new ArrayList<>();
+      Request request;
+      while (batch.size() < maxBatchSize && (request = pending.poll()) != null) {
+        batch.add(request);
+      }
+      try {
+        long start = metrics.start();
+        long first = reservation.reserve(batch.size());
+        metrics.stop(NumberingMetrics.TIMER_STORAGE_BLOCK, id, start);
+        for (int i = 0; i < batch.size(); i++) {
+          batch.get(i).number = first + i;
+          if (i > 0) {
+            metrics.increment(NumberingMetrics.COUNTER_STORAGE_COALESCED, id);
+          }
+        }
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("Served " + batch.size() + " requests for counter " + key + " starting at " + first);
+        }
+      } catch (RuntimeException e) {
+        for (Request failed : batch) {
+          failed.failure = e;
+        }
+      }
+      for (Request served : batch) {
+        served.done = true;
+      }
+    }
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param numberingStorage the storage to reserve ranges in
+   */
+  public void setNumberingStorage(NumberingStorage numberingStorage) {
+    this.numberingStorage = numberingStorage;
+  }
+
+  /**
+   * @param maxBatchSize the maximum number of requests served by one
+   * reservation
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(numberingStorage);
+    Assert.notNull(metrics);
+    Assert.isTrue(maxBatchSize > 0, "Max batch size must be at least 1");
+  }
+
+}
@@ -0,0 +1,504 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Store numbers in memory, backed by a local journal file and blocks reserved
+ * in a backing storage. The backing storage holds the high-water mark of each
+ * counter: numbers are handed out from a reserved block and the next block is
+ * reserved in the background before the current one runs out, which keeps the
+ * repository write off the path of the caller.
+ *
+ * Every allocation is appended to a memory-mapped journal and forced to disk
+ * before the number is returned. Concurrent callers share a force of the
+ * journal. On startup the journal is replayed so that numbering continues
+ * within the current block. Without the journal the counters continue with a
+ * new block, which leaves a gap but never reissues a number. Blocks are
+ * reserved in a transaction of their own, so a rolled back caller never
+ * releases a block which is already journaled.
+ *
+ * A full journal is compacted into a new file which replaces the journal once
+ * it has been forced to disk, so a failed compaction leaves the journal as it
+ * was.
+ *
+ * Counters of other tenants than the default are journaled under keys
+ * qualified by the tenant domain, and their blocks are reserved in the tenant
+ * of the counter.
+ *
+ * Only use this storage for series numbered by a single repository instance.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class JournalNumberingStorageImpl implements NumberingStorage, InitializingBean, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JournalNumberingStorageImpl.class);
+
+  protected static final byte RECORD_VALUE = 1;
+  protected static final byte RECORD_BLOCK = 2;
+  protected static final byte RECORD_NEXT_BLOCK = 3;
+  protected static final String OPTION_SEPARATOR = "\u0000";
+  protected static final String COMPACT_SUFFIX = ".compact";
+  protected static final long DEFAULT_JOURNAL_SIZE = 16L * 1024 * 1024;
+  protected static final long DEFAULT_BLOCK_SIZE = 1000L;
+
+  protected NumberingStorage numberingStorage;
+  protected String journalFile;
+  protected long journalSize = DEFAULT_JOURNAL_SIZE;
+  protected long blockSize = DEFAULT_BLOCK_SIZE;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+
+  protected final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+  protected ExecutorService checkpointExecutor;
+
+  private FileChannel channel;
+  private volatile MappedByteBuffer journal;
+  private final Object appendLock = new Object();
+  private final Object forceLock = new Object();
+  private long appendSequence = 0;
+  private long forcedSequence = 0;
+
+  /**
+   * Latest value, block and next block of every counter in the journal, read on startup
+   * and written at the start of the journal when it is full. Guarded by
+   * appendLock.
+   */
+  private final Map<String, long[]> journalState = new HashMap<>();
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id) {
+    return allocate(initialValue, id, null, 1);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue) {
+    return allocate(startValue, id, optionValue, 1);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    return allocate(initialValue, id, null, count);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count) {
+    return allocate(startValue, id, optionValue, count);
+  }
+
+  /**
+   * Allocate numbers from the current block of a counter, journal the
+   * allocation and wait for the journal to be forced
+   *
+   * @param initialValue The initial value of the counter
+   * @param id The counter id
+   * @param optionValue The option value or null
+   * @param count The number of values to allocate
+   * @return the first allocated number
+   */
+  protected long allocate(final long initialValue, final String id, final String optionValue, final long count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be at least 1");
+    }
+    final String domain = TenantKeys.getCurrentDomain();
+    final String key = TenantKeys.getTenantKey(domain, optionValue == null ? id : id + OPTION_SEPARATOR + optionValue);
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(key, k -> new Counter(k, initialValue, domain, id, optionValue));
+    }
+    long first;
+    long sequence;
+    synchronized (counter) {
+      if (counter.last - counter.value < count) {
+        Block block = counter.prefetched;
+        counter.prefetched = null;
+        if (block == null || block.first <= counter.last || block.last - block.first + 1 < count) {
+          block = reserveBlock(counter, Math.max(blockSize, count));
+        }
+        counter.value = block.first - 1;
+        counter.last = block.last;
+        append(RECORD_BLOCK, key, block.first, block.last);
+      } else {
+        metrics.increment(NumberingMetrics.COUNTER_STORAGE_LOCAL, id);
+      }
+      first = counter.value + 1;
+      counter.value += count;
+      sequence = append(RECORD_VALUE, key, counter.value, 0);
+      prefetch(counter);
+    }
+    long start = metrics.start();
+    force(sequence);
+    metrics.stop(NumberingMetrics.TIMER_JOURNAL_FORCE, id, start);
+    return first;
+  }
+
+  /**
+   * Reserve the next block of a counter in the background once half of the
+   * current block has been used
+   *
+   * @param counter The counter, locked by the caller
+   */
+  protected void prefetch(final Counter counter) {
+    if (counter.prefetching || counter.prefetched != null || counter.last - counter.value > blockSize / 2) {
+      return;
+    }
+    counter.prefetching = true;
+    checkpointExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Block block = null;
+        try {
+          block = reserveBlock(counter, blockSize);
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to reserve the next block of counter " + counter.id + ", it will be reserved when needed", e);
+        }
+        synchronized (counter) {
+          counter.prefetched = block;
+          counter.prefetching = false;
+          if (block != null) {
+            append(RECORD_NEXT_BLOCK, counter.key, block.first, block.last);
+          }
+        }
+      }
+    });
+  }
+
+  protected Block reserveBlock(final Counter counter, final long size) {
+    long start = metrics.start();
+    long first = TenantUtil.runAsSystemTenant(new TenantUtil.TenantRunAsWork<Long>() {
+      @Override
+      public Long doWork() throws Exception {
+        if (counter.optionValue == null) {
+          return numberingStorage.reserveRange(counter.initialValue, counter.id, size, TransactionMode.REQUIRES_NEW);
+        }
+        return numberingStorage.reserveRange(counter.initialValue, counter.id, counter.optionValue, size, TransactionMode.REQUIRES_NEW);
+      }
+    }, counter.domain);
+    metrics.stop(NumberingMetrics.TIMER_STORAGE_BLOCK, counter.id, start);
+    return new Block(first, first + size - 1);
+  }
+
+  /**
+   * Append a record to the journal, compacting the journal when it is full
+   *
+   * @return the sequence number of the record
+   */
+  protected long append(byte type, String key, long a, long b) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    synchronized (appendLock) {
+      if (journal.remaining() >= recordLength(keyBytes) + 4) {
+        updateState(type, key, a, b);
+        writeRecord(journal, type, keyBytes, a, b);
+        return ++appendSequence;
+      }
+    }
+    //The journal is full, forceLock is taken first so that no caller forces the journal while it is replaced
+    synchronized (forceLock) {
+      synchronized (appendLock) {
+        updateState(type, key, a, b);
+        if (journal.remaining() >= recordLength(keyBytes) + 4) {
+          //Another caller compacted the journal while this one waited
+          writeRecord(journal, type, keyBytes, a, b);
+          return ++appendSequence;
+        }
+        try {
+          compact();
+        } catch (IOException e) {
+          throw new AlfrescoRuntimeException("Failed to compact numbering journal " + journalFile, e);
+        }
+        //The compacted journal holds the state of every record so far and has been forced
+        forcedSequence = ++appendSequence;
+        return appendSequence;
+      }
+    }
+  }
+
+  /**
+   * Record the latest state of a counter, written to the compacted journal.
+   * Called with appendLock held.
+   */
+  protected void updateState(byte type, String key, long a, long b) {
+    long[] state = journalState.computeIfAbsent(key, k -> new long[5]);
+    if (type == RECORD_VALUE) {
+      state[0] = a;
+    } else if (type == RECORD_BLOCK) {
+      state[1] = a;
+      state[2] = b;
+    } else {
+      state[3] = a;
+      state[4] = b;
+    }
+  }
+
+  /**
+   * Wait until a record has been forced to disk. The first waiting caller
+   * forces every record appended so far, the others find their record forced
+   * when they get the lock. The journal is only replaced while forceLock is
+   * held, so the journal forced is never one that compaction has closed.
+   *
+   * @param sequence The sequence number of the record
+   */
+  protected void force(long sequence) {
+    synchronized (forceLock) {
+      if (forcedSequence >= sequence) {
+        return;
+      }
+      long target;
+      MappedByteBuffer current;
+      synchronized (appendLock) {
+        target = appendSequence;
+        current = journal;
+      }
+      current.force();
+      forcedSequence = target;
+    }
+  }
+
+  /**
+   * Write the latest state of every counter to a new journal file and move it
+   * over the journal once it has been forced to disk. Called with forceLock
+   * and appendLock held.
+   *
+   * @throws IOException if the new journal could not be written, the current
+   * journal is then left unchanged
+   */
+  protected void compact() throws IOException {
+    Path journalPath = Paths.get(journalFile);
+    Path compactPath = Paths.get(journalFile + COMPACT_SUFFIX);
+    Files.deleteIfExists(compactPath);
+    FileChannel compactChannel = FileChannel.open(compactPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean replaced = false;
+    try {
+      MappedByteBuffer compacted = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, journalSize);
+      for (Map.Entry<String, long[]> entry : journalState.entrySet()) {
+        byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        if (compacted.remaining() < 3 * recordLength(keyBytes) + 4) {
+          throw new IOException("The numbering journal " + journalFile + " is too small for " + journalState.size() + " counters");
+        }
+        long[] state = entry.getValue();
+        writeRecord(compacted, RECORD_BLOCK, keyBytes, state[1], state[2]);
+        writeRecord(compacted, RECORD_VALUE, keyBytes, state[0], 0);
+        if (state[4] > state[2]) {
+          writeRecord(compacted, RECORD_NEXT_BLOCK, keyBytes, state[3], state[4]);
+        }
+      }
+      compacted.force();
+      Files.move(compactPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      replaced = true;
+      FileChannel previousChannel = channel;
+      channel = compactChannel;
+      journal = compacted;
+      previousChannel.close();
+    } finally {
+      if (!replaced) {
+        compactChannel.close();
+        Files.deleteIfExists(compactPath);
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Compacted numbering journal " + journalFile + " to " + journal.position() + " bytes");
+    }
+  }
+
+  private static int recordLength(byte[] keyBytes) {
+    // length, type, key length, key, two values and checksum
+    return 4 + 1 + 2 + keyBytes.length + 8 + 8 + 4;
+  }
+
+  /**
+   * Write a record followed by an end marker which the next record overwrites
+   *
+   * @param buffer The journal or the compacted journal
+   */
+  protected void writeRecord(MappedByteBuffer buffer, byte type, byte[] keyBytes, long a, long b) {
+    int start = buffer.position();
+    buffer.putInt(recordLength(keyBytes));
+    buffer.put(type);
+    buffer.putShort((short) keyBytes.length);
+    buffer.put(keyBytes);
+    buffer.putLong(a);
+    buffer.putLong(b);
+    CRC32 crc = new CRC32();
+    for (int i = start + 4; i < buffer.position(); i++) {
+      crc.update(buffer.get(i));
+    }
+    buffer.putInt((int) crc.getValue());
+    buffer.putInt(buffer.position(), 0);
+  }
+
+  /**
+   * Replay the journal into journalState and position it after the last valid
+   * record. Values and blocks only grow, so the largest of each wins.
+   */
+  private void replay() {
+    int records = 0;
+    while (journal.remaining() >= 4) {
+      int start = journal.position();
+      int length = journal.getInt();
+      if (length <= 4 || length > journal.remaining() + 4) {
+        journal.position(start);
+        break;
+      }
+      CRC32 crc = new CRC32();
+      for (int i = start + 4; i < start + length - 4; i++) {
+        crc.update(journal.get(i));
+      }
+      if ((int) crc.getValue() != journal.getInt(start + length - 4)) {
+        journal.position(start);
+        break;
+      }
+      byte type = journal.get();
+      byte[] keyBytes = new byte[journal.getShort()];
+      journal.get(keyBytes);
+      long a = journal.getLong();
+      long b = journal.getLong();
+      journal.getInt();
+      long[] state = journalState.computeIfAbsent(new String(keyBytes, StandardCharsets.UTF_8), k -> new long[5]);
+      if (type == RECORD_VALUE) {
+        state[0] = Math.max(state[0], a);
+      } else if (type == RECORD_BLOCK && b > state[2]) {
+        state[1] = a;
+        state[2] = b;
+      } else if (type == RECORD_NEXT_BLOCK && b > state[4]) {
+        state[3] = a;
+        state[4] = b;
+      }
+      records++;
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Replayed " + records + " records of " + journalState.size() + " counters from numbering journal " + journalFile);
+    }
+  }
+
+  /**
+   * An in-memory counter and its current block
+   */
+  protected class Counter {
+
+    private final String key;
+    private final long initialValue;
+    private final String domain;
+    private final String id;
+    private final String optionValue;
+    private long value;
+    private long last;
+    private Block prefetched;
+    private boolean prefetching;
+
+    protected Counter(String key, long initialValue, String domain, String id, String optionValue) {
+      this.key = key;
+      this.initialValue = initialValue;
+      this.domain = domain;
+      this.id = id;
+      this.optionValue = optionValue;
+      synchronized (appendLock) {
+        long[] state = journalState.get(key);
+        if (state != null && state[2] > 0) {
+          value = Math.max(state[0], state[1] - 1);
+          last = state[2];
+          if (state[4] > last) {
+            prefetched = new Block(state[3], state[4]);
+          }
+        }
+      }
+    }
+  }
+
+  protected static class Block {
+
+    private final long first;
+    private final long last;
+
+    protected Block(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+  }
+
+  public void setNumberingStorage(NumberingStorage numberingStorage) {
+    this.numberingStorage = numberingStorage;
+  }
+
+  public void setJournalFile(String journalFile) {
+    this.journalFile = journalFile;
+  }
+
+  public void setJournalSize(long journalSize) {
+    this.journalSize = journalSize;
+  }
+
+  public void setBlockSize(long blockSize) {
+    this.blockSize = blockSize;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(numberingStorage, "you must provide a numbering storage");
+    Assert.hasText(journalFile, "you must provide a journal file");
+    Assert.notNull(metrics, "you must provide metrics");
+    Assert.isTrue(blockSize > 1, "blockSize must be at least 2");
+    Assert.isTrue(journalSize > 1024 && journalSize <= Integer.MAX_VALUE, "journalSize must be between 1 KB and 2 GB");
+
+    File file = new File(journalFile);
+    if (file.getParentFile() != null && !file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+      throw new IOException("Could not create the directory of numbering journal " + journalFile);
+    }
+    //A compaction interrupted before it replaced the journal is discarded
+    Files.deleteIfExists(Paths.get(journalFile + COMPACT_SUFFIX));
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, journalSize);
+    synchronized (appendLock) {
+      replay();
+    }
+    checkpointExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "rl-numbering-journal-checkpoint");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    if (checkpointExecutor != null) {
+      checkpointExecutor.shutdown();
+      checkpointExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    if (journal != null) {
+      synchronized (appendLock) {
+        journal.force();
+      }
+    }
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+}
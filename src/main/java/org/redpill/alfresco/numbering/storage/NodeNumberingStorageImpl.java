@@ -1,36 +1,58 @@
 package org.redpill.alfresco.numbering.storage;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.lock.JobLockService;
 import org.alfresco.repo.model.Repository;
 import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.util.Pair;
+import org.redpill.alfresco.numbering.cache.CacheStatistics;
+import org.redpill.alfresco.numbering.cache.CounterCache;
+import org.redpill.alfresco.numbering.lock.CounterLock;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
 import org.springframework.util.Assert;
 
 /**
  * Store numbers using node service. This is well tested and cluster safe.
  *
+ * Counters are kept in the data dictionary of the current tenant. Cache and
+ * lock keys are qualified by the tenant domain so that tenants never share
+ * cached nodes or counter locks. Keys of the default domain are not
+ * qualified. Metrics are tagged by counter id only.
+ *
  * @author Marcus Svartmark - Redpill Linpro AB
  */
-public class NodeNumberingStorageImpl implements NumberingStorage, InitializingBean {
+public class NodeNumberingStorageImpl extends AbstractLifecycleBean implements NumberingStorage, InitializingBean {
 
   private static final String DD_XPATH = "/app:company_home/app:dictionary";
   protected static final String NUMBERING_FOLDER_NAME = "Numbering";
+  protected static final String DATA_DICTIONARY_KEY = "dataDictionary";
+  protected static final String COUNTER_APP_KEY = "counterApp";
+  protected static final String OPTION_CONTAINER_KEY = "optionContainer/";
+  protected static final String OPTION_BUCKET_KEY = "optionBucket/";
+  protected static final String OPTION_CONTAINER_SUFFIX = ".options";
+  protected static final int OPTION_BUCKETS = 256;
   private static final QName NUMBERING_FOLDER_QNAME = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, NUMBERING_FOLDER_NAME);
   protected static final QName NUMBERING_PROPERTY = QName.createQName(NamespaceService.APP_MODEL_1_0_URI, "counterValue");
   private static final Logger LOG = LoggerFactory.getLogger(NodeNumberingStorageImpl.class);
@@ -47,7 +69,64 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
   protected Repository repositoryHelper;
   protected NodeService nodeService;
   protected BehaviourFilter behaviourFilter;
-  protected Map<String, NodeRef> counterCache = new HashMap<>();
+  protected SimpleCache<String, NodeRef> containerCache;
+  protected CacheStatistics containerCacheStatistics = new CacheStatistics();
+  protected CounterCache counterCache;
+  protected CounterLock counterLock;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+  protected boolean warmUpCache = true;
+  protected NodeDAO nodeDAO;
+  protected boolean fastPath = false;
+
+  /**
+   * Returns a container node from the container cache. Stale entries are
+   * removed from the cache.
+   *
+   * @param key the cache key
+   * @return NodeRef or null if not cached
+   */
+  protected NodeRef getCachedContainer(String key) {
+    String tenantKey = getTenantKey(key);
+    NodeRef nodeRef = containerCache.get(tenantKey);
+    if (nodeRef != null) {
+      if (nodeService.exists(nodeRef)) {
+        containerCacheStatistics.hit();
+        return nodeRef;
+      }
+      containerCache.remove(tenantKey);
+    }
+    containerCacheStatistics.miss();
+    return null;
+  }
+
+  /**
+   * Put a container node in the container cache of the current tenant
+   *
+   * @param key the cache key
+   * @param nodeRef the container node
+   */
+  protected void putCachedContainer(String key, NodeRef nodeRef) {
+    containerCache.put(getTenantKey(key), nodeRef);
+  }
+
+  /**
+   * Qualify a cache or lock key by the domain of the current tenant
+   *
+   * @param key the key
+   * @return the key, prefixed by the tenant domain unless in the default
+   * domain
+   */
+  protected String getTenantKey(String key) {
+    return TenantKeys.getTenantKey(key);
+  }
+
+  /**
+   * @param id the id of the counter
+   * @return the counter cache key of a counter
+   */
+  protected String getCounterKey(final String id) {
+    return getTenantKey(id);
+  }
 
   /**
    * Returns the node ref of the data dictionary
@@ -55,11 +134,16 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
    * @return NodeRef
    */
   protected NodeRef getDataDictionaryNode() {
-    List<NodeRef> nodeRefList = searchService.selectNodes(repositoryHelper.getRootHome(), DD_XPATH, null, namespaceService, false);
-    if (nodeRefList.size() != 1) {
-      throw new AlfrescoRuntimeException("Could not look up data dictionary node");
+    NodeRef dataDictionaryNode = getCachedContainer(DATA_DICTIONARY_KEY);
+    if (dataDictionaryNode == null) {
+      List<NodeRef> nodeRefList = searchService.selectNodes(repositoryHelper.getRootHome(), DD_XPATH, null, namespaceService, false);
+      if (nodeRefList.size() != 1) {
+        throw new AlfrescoRuntimeException("Could not look up data dictionary node");
+      }
+      dataDictionaryNode = nodeRefList.get(0);
+      putCachedContainer(DATA_DICTIONARY_KEY, dataDictionaryNode);
     }
-    return nodeRefList.get(0);
+    return dataDictionaryNode;
   }
 
   /**
@@ -68,17 +152,7 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
    * @return NodeRef
    */
   protected NodeRef getCounterApp() {
-    NodeRef counterFolderNodeRef = null;
-    NodeRef dataDictionaryNode = getDataDictionaryNode();
-
-    List<ChildAssociationRef> childAssocs = nodeService.getChildAssocs(dataDictionaryNode);
-    for (ChildAssociationRef childAssoc : childAssocs) {
-      Serializable property = nodeService.getProperty(childAssoc.getChildRef(), ContentModel.PROP_NAME);
-      if (NUMBERING_FOLDER_NAME.equals(property)) {
-        counterFolderNodeRef = childAssoc.getChildRef();
-        break;
-      }
-    }
+    NodeRef counterFolderNodeRef = findCounterApp();
 
     if (counterFolderNodeRef == null) {
       counterFolderNodeRef = createCounterApp();
@@ -87,6 +161,22 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
     return counterFolderNodeRef;
   }
 
+  /**
+   * Looks up the node that is the holder for the counter properties
+   *
+   * @return NodeRef or null if it does not exist
+   */
+  protected NodeRef findCounterApp() {
+    NodeRef counterFolderNodeRef = getCachedContainer(COUNTER_APP_KEY);
+    if (counterFolderNodeRef == null) {
+      counterFolderNodeRef = nodeService.getChildByName(getDataDictionaryNode(), ContentModel.ASSOC_CONTAINS, NUMBERING_FOLDER_NAME);
+      if (counterFolderNodeRef != null) {
+        putCachedContainer(COUNTER_APP_KEY, counterFolderNodeRef);
+      }
+    }
+    return counterFolderNodeRef;
+  }
+
   /**
    * Create the counter app folder
    *
@@ -109,35 +199,21 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
    * @return NodeRef
    */
   protected NodeRef getCounterNode(final long initialValue, final String id) {
-    NodeRef counterNodeRef = null;
-    if (counterCache.containsKey(id)) {
-      counterNodeRef = counterCache.get(id);
-      //If it has been removed, the remove it from cache
-      if (!nodeService.exists(counterNodeRef)) {
-        counterCache.remove(id);
-        counterNodeRef = null;
-      }
-    }
-    if (counterNodeRef == null) {
-      //The counter was not found in cache, try to fetch it fro mthe repo
-      NodeRef counterAppFolderNodeRef = getCounterApp();
-      List<ChildAssociationRef> childAssocs = nodeService.getChildAssocs(counterAppFolderNodeRef);
-      QName expectedQname = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, id);
-      for (ChildAssociationRef childAssoc : childAssocs) {
-        Serializable property = nodeService.getProperty(childAssoc.getChildRef(), ContentModel.PROP_NAME);
-        if (id.equals(property)) {
-          counterNodeRef = childAssoc.getChildRef();
-          break;
-        } else {
-          LOG.trace("Id: " + id + ", property:" + property);
-        }
-      }
+    //Cached nodes are not validated here, a removed counter node is detected when increased
+    String key = getCounterKey(id);
+    NodeRef counterNodeRef = counterCache.get(key);
+    if (counterNodeRef != null) {
+      metrics.increment(NumberingMetrics.COUNTER_CACHE_HITS, id);
+    } else {
+      metrics.increment(NumberingMetrics.COUNTER_CACHE_MISSES, id);
+      //The counter was not found in cache, look it up by name in the repo
+      counterNodeRef = nodeService.getChildByName(getCounterApp(), ContentModel.ASSOC_CONTAINS, id);
 
       if (counterNodeRef == null) {
         counterNodeRef = createCounterNode(initialValue, id);
       }
 
-      counterCache.put(id, counterNodeRef);
+      counterCache.put(key, counterNodeRef);
     }
     return counterNodeRef;
   }
@@ -162,123 +238,447 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
 
   @Override
   public long getNextNumber(final long initialValue, final String id) {
+    return reserveRange(initialValue, id, 1, TransactionMode.REQUIRES_NEW);
+  }
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id, final TransactionMode transactionMode) {
+    return reserveRange(initialValue, id, 1, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    return reserveRange(initialValue, id, count, TransactionMode.REQUIRES_NEW);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count, final TransactionMode transactionMode) {
+    return reserveInCounterTransaction(id, getCounterKey(id), count, transactionMode, new CounterNodeLookup() {
+      @Override
+      public NodeRef getCounterNode() {
+        return NodeNumberingStorageImpl.this.getCounterNode(initialValue, id);
+      }
+    });
+  }
+
+  /**
+   * Increase a counter in a transaction of its own under the counter lock, or
+   * in the transaction of the caller
+   *
+   * @param id the id of the counter, which tags the metrics
+   * @param key the counter cache key of the counter
+   * @param count the amount to increase the counter with
+   * @param transactionMode how the counter update relates to the transaction
+   * of the caller
+   * @param lookup looks up or creates the counter node
+   * @return the first number of the reserved range
+   */
+  protected long reserveInCounterTransaction(final String id, final String key, final long count, final TransactionMode transactionMode, final CounterNodeLookup lookup) {
+    Assert.isTrue(count > 0, "Count must be at least 1");
+    Assert.notNull(transactionMode, "you must provide a transaction mode");
+    final RetryingTransactionHelper.RetryingTransactionCallback<Long> callback = new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+      private boolean retry = false;
 
-    return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
       @Override
       public Long execute() throws Throwable {
+        if (retry) {
+          counterLock.recordTransactionRetry();
+          metrics.increment(NumberingMetrics.COUNTER_TRANSACTION_RETRIES, id);
+        }
+        retry = true;
+        NodeRef cachedCounterNode = fastPath ? counterCache.get(key) : null;
+        if (cachedCounterNode != null) {
+          metrics.increment(NumberingMetrics.COUNTER_CACHE_HITS, id);
+          return increaseCounterFast(cachedCounterNode, key, count);
+        }
         behaviourFilter.disableBehaviour();
         String fullyAuthenticatedUser = AuthenticationUtil.getFullyAuthenticatedUser();
         AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.SYSTEM_USER_NAME);
         try {
-          NodeRef counterNode = getCounterNode(initialValue, id);
-          Long counterValue = (Long) nodeService.getProperty(counterNode, NUMBERING_PROPERTY);
-          nodeService.setProperty(counterNode, NUMBERING_PROPERTY, ++counterValue);
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Counter " + id + " increased to " + counterValue);
-          }
-          return counterValue;
-
+          return increaseCounter(lookup.getCounterNode(), key, count);
         } finally {
           AuthenticationUtil.setFullyAuthenticatedUser(fullyAuthenticatedUser);
           behaviourFilter.enableBehaviour();
         }
       }
-    }, false, true);
+    };
+    if (transactionMode.joinsTransaction()) {
+      //Joins the transaction of the caller, which commits after any lock would have been released
+      long start = metrics.start();
+      Long firstValue = retryingTransactionHelper.doInTransaction(callback, false, false);
+      metrics.stop(NumberingMetrics.TIMER_STORAGE_TRANSACTION, id, start);
+      return firstValue;
+    }
+    //The counter transaction commits before the lock is released
+    return counterLock.doWithLock(key, id, new CounterLock.LockCallback<Long>() {
+      @Override
+      public Long execute() {
+        long start = metrics.start();
+        Long firstValue = retryingTransactionHelper.doInTransaction(callback, false, true);
+        metrics.stop(NumberingMetrics.TIMER_STORAGE_TRANSACTION, id, start);
+        return firstValue;
+      }
+    });
+  }
+
+  /**
+   * Looks up or creates a counter node inside the counter transaction
+   */
+  protected interface CounterNodeLookup {
 
+    NodeRef getCounterNode();
   }
-  
-  
-  
-  
+
   /**
-   * Create the counter node based on optionValue
+   * Increase the value of a counter node
+   *
+   * @param counterNode the counter node
+   * @param id the id of the counter
+   * @param count the amount to increase the counter with
+   * @return the first number of the reserved range
+   */
+  protected long increaseCounter(final NodeRef counterNode, final String id, final long count) {
+    Long counterValue;
+    try {
+      counterValue = (Long) nodeService.getProperty(counterNode, NUMBERING_PROPERTY);
+    } catch (InvalidNodeRefException e) {
+      //The cached counter node has been removed, retry the transaction with a fresh lookup
+      counterCache.remove(id);
+      throw new ConcurrencyFailureException("Counter node " + counterNode + " of counter " + id + " no longer exists", e);
+    }
+    long firstValue = counterValue + 1;
+    counterValue += count;
+    nodeService.setProperty(counterNode, NUMBERING_PROPERTY, counterValue);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Counter " + id + " increased to " + counterValue);
+    }
+    return firstValue;
+  }
+
+  /**
+   * Increase the value of a cached counter node directly through the node DAO.
+   * The DAO fires no policies and checks no permissions, so neither behaviours
+   * nor the authenticated user need to be switched. Counter nodes which are
+   * not cached take the node service path, which creates them when needed.
+   *
+   * @param counterNode the counter node
+   * @param key the counter cache key of the counter
+   * @param count the amount to increase the counter with
+   * @return the first number of the reserved range
+   */
+  protected long increaseCounterFast(final NodeRef counterNode, final String key, final long count) {
+    Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(counterNode);
+    Serializable counterValue = nodePair == null ? null : nodeDAO.getNodeProperty(nodePair.getFirst(), NUMBERING_PROPERTY);
+    if (!(counterValue instanceof Long)) {
+      //The cached counter node has been removed, retry the transaction with a fresh lookup
+      counterCache.remove(key);
+      throw new ConcurrencyFailureException("Counter node " + counterNode + " of counter " + key + " no longer exists");
+    }
+    long firstValue = (Long) counterValue + 1;
+    long lastValue = (Long) counterValue + count;
+    nodeDAO.addNodeProperty(nodePair.getFirst(), NUMBERING_PROPERTY, lastValue);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Counter " + key + " increased to " + lastValue);
+    }
+    return firstValue;
+  }
+
+  /**
+   * Create the counter node based on optionValue in its bucket folder. A
+   * counter of the same option value in the flat layout of earlier versions,
+   * which was shared by all ids, is not moved but its value is taken over so
+   * that no number is issued twice.
    *
    * @param initialValue its initial value if node does not exist
    * @param id the id of the counter
+   * @param optionValue the option value of the counter
    * @return NodeRef
    */
-  protected NodeRef createCounterNode(final long initialValue, final String id,final String optionValue) {
+  protected NodeRef createCounterNode(final long initialValue, final String id, final String optionValue) {
+    long counterValue = initialValue;
+    NodeRef legacyCounterNodeRef = nodeService.getChildByName(getCounterApp(), ContentModel.ASSOC_CONTAINS, optionValue);
+    if (legacyCounterNodeRef != null) {
+      Serializable legacyValue = nodeService.getProperty(legacyCounterNodeRef, NUMBERING_PROPERTY);
+      if (legacyValue instanceof Long && (Long) legacyValue > counterValue) {
+        counterValue = (Long) legacyValue;
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Migrating option counter " + optionValue + " of " + id + " at value " + counterValue);
+        }
+      }
+    }
     String fullyAuthenticatedUser = AuthenticationUtil.getFullyAuthenticatedUser();
     AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.SYSTEM_USER_NAME);
-    ChildAssociationRef createNode = nodeService.createNode(getCounterApp(), ContentModel.ASSOC_CONTAINS, QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, id), ContentModel.TYPE_CONTENT);
+    ChildAssociationRef createNode = nodeService.createNode(getOptionBucket(id, optionValue), ContentModel.ASSOC_CONTAINS, QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, QName.createValidLocalName(optionValue)), ContentModel.TYPE_CONTENT);
     nodeService.setProperty(createNode.getChildRef(), ContentModel.PROP_NAME, optionValue);
     nodeService.addAspect(createNode.getChildRef(), ContentModel.ASPECT_HIDDEN, null);
-    nodeService.setProperty(createNode.getChildRef(), NUMBERING_PROPERTY, initialValue);
+    nodeService.setProperty(createNode.getChildRef(), NUMBERING_PROPERTY, counterValue);
     AuthenticationUtil.setFullyAuthenticatedUser(fullyAuthenticatedUser);
     return createNode.getChildRef();
   }
-  
-  
+
   /**
-   * Get the counter node based on optionValue
+   * Get the counter node based on optionValue. Option counters are kept in a
+   * folder per id, spread over bucket folders by the hash of the option value
+   * so that no folder grows beyond a few hundred children.
    *
    * @param initialValue its initial value if node does not exist
    * @param id the id of the counter
+   * @param optionValue the option value of the counter
    * @return NodeRef
    */
-  protected NodeRef getCounterNode(final long initialValue, final String id,final String optionValue) {
-    NodeRef counterNodeRef = null;
-    if (counterCache.containsKey(optionValue)) {
-      counterNodeRef = counterCache.get(optionValue);
-      //If it has been removed, the remove it from cache
-      if (!nodeService.exists(counterNodeRef)) {
-        counterCache.remove(optionValue);
-        counterNodeRef = null;
-      }
-    }
-    if (counterNodeRef == null) {
-      //The counter was not found in cache, try to fetch it fro mthe repo
-      NodeRef counterAppFolderNodeRef = getCounterApp();
-      List<ChildAssociationRef> childAssocs = nodeService.getChildAssocs(counterAppFolderNodeRef);
-      QName expectedQname = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, id);
-      for (ChildAssociationRef childAssoc : childAssocs) {
-        Serializable property = nodeService.getProperty(childAssoc.getChildRef(), ContentModel.PROP_NAME);
-        if (optionValue.equals(property)) {
-          counterNodeRef = childAssoc.getChildRef();
-          break;
-        } else {
-          LOG.trace("Id: " + optionValue + ", property:" + property);
-        }
-      }
+  protected NodeRef getCounterNode(final long initialValue, final String id, final String optionValue) {
+    //Cached nodes are not validated here, a removed counter node is detected when increased
+    String key = getOptionCounterKey(id, optionValue);
+    NodeRef counterNodeRef = counterCache.get(key);
+    if (counterNodeRef != null) {
+      metrics.increment(NumberingMetrics.COUNTER_CACHE_HITS, id);
+    } else {
+      metrics.increment(NumberingMetrics.COUNTER_CACHE_MISSES, id);
+      //The counter was not found in cache, look it up by name in its bucket
+      counterNodeRef = nodeService.getChildByName(getOptionBucket(id, optionValue), ContentModel.ASSOC_CONTAINS, optionValue);
 
       if (counterNodeRef == null) {
-        counterNodeRef = createCounterNode(initialValue, optionValue);
+        counterNodeRef = createCounterNode(initialValue, id, optionValue);
       }
 
-      counterCache.put(optionValue, counterNodeRef);
+      counterCache.put(key, counterNodeRef);
     }
     return counterNodeRef;
   }
-  
-  
+
+  /**
+   * @param id the id of the counter
+   * @param optionValue the option value of the counter
+   * @return the counter cache key of an option counter
+   */
+  protected String getOptionCounterKey(final String id, final String optionValue) {
+    return getTenantKey(id + "/" + optionValue);
+  }
+
+  /**
+   * Get the bucket folder of an option counter, creating it and the option
+   * folder of the id if needed
+   *
+   * @param id the id of the counter
+   * @param optionValue the option value of the counter
+   * @return NodeRef
+   */
+  protected NodeRef getOptionBucket(final String id, final String optionValue) {
+    String bucketName = String.format("%02x", optionValue.hashCode() & (OPTION_BUCKETS - 1));
+    String bucketKey = OPTION_BUCKET_KEY + id + "/" + bucketName;
+    NodeRef bucketNodeRef = getCachedContainer(bucketKey);
+    if (bucketNodeRef == null) {
+      String containerKey = OPTION_CONTAINER_KEY + id;
+      NodeRef containerNodeRef = getCachedContainer(containerKey);
+      if (containerNodeRef == null) {
+        containerNodeRef = getOrCreateFolder(getCounterApp(), id + OPTION_CONTAINER_SUFFIX);
+        putCachedContainer(containerKey, containerNodeRef);
+      }
+      bucketNodeRef = getOrCreateFolder(containerNodeRef, bucketName);
+      putCachedContainer(bucketKey, bucketNodeRef);
+    }
+    return bucketNodeRef;
+  }
+
+  /**
+   * Look up a hidden folder by name, creating it if it does not exist
+   *
+   * @param parentNodeRef the parent folder
+   * @param name the name of the folder
+   * @return NodeRef
+   */
+  protected NodeRef getOrCreateFolder(final NodeRef parentNodeRef, final String name) {
+    NodeRef folderNodeRef = nodeService.getChildByName(parentNodeRef, ContentModel.ASSOC_CONTAINS, name);
+    if (folderNodeRef == null) {
+      String fullyAuthenticatedUser = AuthenticationUtil.getFullyAuthenticatedUser();
+      AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.SYSTEM_USER_NAME);
+      ChildAssociationRef createNode = nodeService.createNode(parentNodeRef, ContentModel.ASSOC_CONTAINS, QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, QName.createValidLocalName(name)), ContentModel.TYPE_FOLDER);
+      folderNodeRef = createNode.getChildRef();
+      nodeService.setProperty(folderNodeRef, ContentModel.PROP_NAME, name);
+      nodeService.addAspect(folderNodeRef, ContentModel.ASPECT_HIDDEN, null);
+      AuthenticationUtil.setFullyAuthenticatedUser(fullyAuthenticatedUser);
+    }
+    return folderNodeRef;
+  }
+
+  @Override
+  public long getNextNumber(final long initialValue, final String ids, final String optionValue) {
+    return reserveRange(initialValue, ids, optionValue, 1, TransactionMode.REQUIRES_NEW);
+  }
+
   @Override
-  public long getNextNumber(final long initialValue, final String ids,final String optionValue) {
+  public long getNextNumber(final long initialValue, final String ids, final String optionValue, final TransactionMode transactionMode) {
+    return reserveRange(initialValue, ids, optionValue, 1, transactionMode);
+  }
 
-    return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+  @Override
+  public long reserveRange(final long initialValue, final String ids, final String optionValue, final long count) {
+    return reserveRange(initialValue, ids, optionValue, count, TransactionMode.REQUIRES_NEW);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String ids, final String optionValue, final long count, final TransactionMode transactionMode) {
+    return reserveInCounterTransaction(ids, getOptionCounterKey(ids, optionValue), count, transactionMode, new CounterNodeLookup() {
       @Override
-      public Long execute() throws Throwable {
-        behaviourFilter.disableBehaviour();
-        String fullyAuthenticatedUser = AuthenticationUtil.getFullyAuthenticatedUser();
-        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.SYSTEM_USER_NAME);
-        try {
-          NodeRef counterNode = getCounterNode(initialValue, optionValue,optionValue);
-          Long counterValue = (Long) nodeService.getProperty(counterNode, NUMBERING_PROPERTY);
-          nodeService.setProperty(counterNode, NUMBERING_PROPERTY, ++counterValue);
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Counter " + optionValue + " increased to " + counterValue);
+      public NodeRef getCounterNode() {
+        return NodeNumberingStorageImpl.this.getCounterNode(initialValue, ids, optionValue);
+      }
+    });
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    counterLock.doWithLock(getCounterKey(id), id, new CounterLock.LockCallback<Void>() {
+      @Override
+      public Void execute() {
+        return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+          @Override
+          public Void execute() throws Throwable {
+            behaviourFilter.disableBehaviour();
+            String fullyAuthenticatedUser = AuthenticationUtil.getFullyAuthenticatedUser();
+            AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.SYSTEM_USER_NAME);
+            try {
+              getCounterNode(initialValue, id);
+              return null;
+            } finally {
+              AuthenticationUtil.setFullyAuthenticatedUser(fullyAuthenticatedUser);
+              behaviourFilter.enableBehaviour();
+            }
           }
-          return counterValue;
+        }, false, true);
+      }
+    });
+  }
 
-        } finally {
-          AuthenticationUtil.setFullyAuthenticatedUser(fullyAuthenticatedUser);
-          behaviourFilter.enableBehaviour();
+  @Override
+  public void ensureCounter(final long initialValue, final String ids, final String optionValue) {
+    counterLock.doWithLock(getOptionCounterKey(ids, optionValue), ids, new CounterLock.LockCallback<Void>() {
+      @Override
+      public Void execute() {
+        return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+          @Override
+          public Void execute() throws Throwable {
+            behaviourFilter.disableBehaviour();
+            String fullyAuthenticatedUser = AuthenticationUtil.getFullyAuthenticatedUser();
+            AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.SYSTEM_USER_NAME);
+            try {
+              getCounterNode(initialValue, ids, optionValue);
+              return null;
+            } finally {
+              AuthenticationUtil.setFullyAuthenticatedUser(fullyAuthenticatedUser);
+              behaviourFilter.enableBehaviour();
+            }
+          }
+        }, false, true);
+      }
+    });
+  }
+
+  /**
+   * Loads all existing counter nodes into the counter cache in one pass over
+   * the children of the counter app folder and the bucket folders of the
+   * option counters. Counter names are taken from the child association
+   * names, so no node properties are read.
+   */
+  protected void warmUpCounterCache() {
+    NodeRef counterAppFolderNodeRef = findCounterApp();
+    if (counterAppFolderNodeRef == null) {
+      return;
+    }
+    int loaded = 0;
+    for (ChildAssociationRef childAssoc : getContainedAssocs(counterAppFolderNodeRef)) {
+      String name = getChildName(childAssoc);
+      if (name == null) {
+        continue;
+      }
+      if (name.endsWith(OPTION_CONTAINER_SUFFIX)) {
+        loaded += warmUpOptionCounters(name.substring(0, name.length() - OPTION_CONTAINER_SUFFIX.length()), childAssoc.getChildRef());
+      } else {
+        counterCache.put(getCounterKey(name), childAssoc.getChildRef());
+        loaded++;
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Loaded " + loaded + " counter nodes into the counter cache");
+    }
+  }
+
+  /**
+   * Loads the option counters of an id into the counter cache, caching the
+   * option folder and its bucket folders on the way
+   *
+   * @param id the id of the counters
+   * @param containerNodeRef the option folder of the id
+   * @return the number of counter nodes loaded
+   */
+  protected int warmUpOptionCounters(final String id, final NodeRef containerNodeRef) {
+    putCachedContainer(OPTION_CONTAINER_KEY + id, containerNodeRef);
+    int loaded = 0;
+    for (ChildAssociationRef bucketAssoc : getContainedAssocs(containerNodeRef)) {
+      String bucketName = getChildName(bucketAssoc);
+      if (bucketName == null) {
+        continue;
+      }
+      putCachedContainer(OPTION_BUCKET_KEY + id + "/" + bucketName, bucketAssoc.getChildRef());
+      for (ChildAssociationRef counterAssoc : getContainedAssocs(bucketAssoc.getChildRef())) {
+        String optionValue = getChildName(counterAssoc);
+        if (optionValue != null) {
+          counterCache.put(getOptionCounterKey(id, optionValue), counterAssoc.getChildRef());
+          loaded++;
         }
       }
-    }, false, false);
+    }
+    return loaded;
+  }
+
+  /**
+   * @param parentNodeRef a folder
+   * @return the primary child associations of the folder
+   */
+  protected List<ChildAssociationRef> getContainedAssocs(final NodeRef parentNodeRef) {
+    return nodeService.getChildAssocs(parentNodeRef, ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL, true);
+  }
+
+  /**
+   * The name of a counter node or folder, which is also the local name of its
+   * child association. Only association names which may have been truncated
+   * are resolved by reading the name property.
+   *
+   * @param childAssoc the child association of the node
+   * @return String or null if the node has no name
+   */
+  protected String getChildName(final ChildAssociationRef childAssoc) {
+    String name = childAssoc.getQName().getLocalName();
+    if (name.length() < QName.MAX_LENGTH) {
+      return name;
+    }
+    Serializable fullName = nodeService.getProperty(childAssoc.getChildRef(), ContentModel.PROP_NAME);
+    return fullName == null ? null : fullName.toString();
+  }
+
+  @Override
+  protected void onBootstrap(ApplicationEvent event) {
+    if (!warmUpCache) {
+      return;
+    }
+    AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+      @Override
+      public Void doWork() throws Exception {
+        return retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+          @Override
+          public Void execute() throws Throwable {
+            warmUpCounterCache();
+            return null;
+          }
+        }, true, false);
+      }
+    });
+  }
 
+  @Override
+  protected void onShutdown(ApplicationEvent event) {
+    // Nothing to do
   }
-  
-  
 
   public void setJobLockService(JobLockService jobLockService) {
     this.jobLockService = jobLockService;
@@ -308,6 +708,59 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
     this.searchService = searchService;
   }
 
+  /**
+   * @param containerCache cache for the data dictionary and numbering folder
+   * nodes
+   */
+  public void setContainerCache(SimpleCache<String, NodeRef> containerCache) {
+    this.containerCache = containerCache;
+  }
+
+  /**
+   * @param containerCacheStatistics statistics for the container cache
+   */
+  public void setContainerCacheStatistics(CacheStatistics containerCacheStatistics) {
+    this.containerCacheStatistics = containerCacheStatistics;
+  }
+
+  /**
+   * @param counterCache cache for the counter nodes
+   */
+  public void setCounterCache(CounterCache counterCache) {
+    this.counterCache = counterCache;
+  }
+
+  /**
+   * @param counterLock lock serializing increments of the same counter
+   */
+  public void setCounterLock(CounterLock counterLock) {
+    this.counterLock = counterLock;
+  }
+
+  /**
+   * @param warmUpCache set to true to load all existing counter nodes into the
+   * counter cache on startup
+   */
+  public void setWarmUpCache(boolean warmUpCache) {
+    this.warmUpCache = warmUpCache;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setNodeDAO(NodeDAO nodeDAO) {
+    this.nodeDAO = nodeDAO;
+  }
+
+  /**
+   * @param fastPath Set to true to increase cached counter nodes through the
+   * node DAO, requires a node DAO
+   */
+  public void setFastPath(boolean fastPath) {
+    this.fastPath = fastPath;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     Assert.notNull(jobLockService);
@@ -317,6 +770,12 @@ public class NodeNumberingStorageImpl implements NumberingStorage, InitializingB
     Assert.notNull(repositoryHelper);
     Assert.notNull(retryingTransactionHelper);
     Assert.notNull(searchService);
+    Assert.notNull(containerCache);
+    Assert.notNull(containerCacheStatistics);
+    Assert.notNull(counterCache);
+    Assert.notNull(counterLock);
+    Assert.notNull(metrics);
+    Assert.isTrue(!fastPath || nodeDAO != null, "you must provide a node DAO for the fast path");
   }
 
 }
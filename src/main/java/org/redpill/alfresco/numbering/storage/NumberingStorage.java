@@ -27,4 +27,123 @@ public interface NumberingStorage {
 
   long getNextNumber(long startValue, String id, String optionValue);
 
+  /**
+   * Reserves a contiguous range of numbers in the numbering series with a
+   * single update of the counter. Storages which cannot reserve ranges only
+   * support ranges of a single number.
+   *
+   * @param initialValue The initial value of the counter
+   * @param id The counter id
+   * @param count The number of values to reserve, must be at least 1
+   * @return the first number of the reserved range, the last number is
+   * first + count - 1
+   */
+  default long reserveRange(long initialValue, String id, long count) {
+    if (count == 1) {
+      return getNextNumber(initialValue, id);
+    }
+    throw new UnsupportedOperationException(getClass().getName() + " cannot reserve ranges of numbers");
+  }
+
+  /**
+   * Reserves a contiguous range of numbers in the numbering series based on
+   * optionValue from drop down list with a single update of the counter.
+   * Storages which cannot reserve ranges only support ranges of a single
+   * number.
+   *
+   * @param startValue The initial value of the counter
+   * @param id The counter id
+   * @param optionValue The option value
+   * @param count The number of values to reserve, must be at least 1
+   * @return the first number of the reserved range
+   */
+  default long reserveRange(long startValue, String id, String optionValue, long count) {
+    if (count == 1) {
+      return getNextNumber(startValue, id, optionValue);
+    }
+    throw new UnsupportedOperationException(getClass().getName() + " cannot reserve ranges of numbers");
+  }
+
+  /**
+   * Returns the next number in the numbering series, updating the counter in
+   * the given transaction mode. Storages which do not update the counter in
+   * the repository transaction ignore the mode.
+   *
+   * @param initialValue The initial value of the counter
+   * @param id The counter id
+   * @param transactionMode How the counter update relates to the transaction
+   * of the caller
+   * @return long
+   */
+  default long getNextNumber(long initialValue, String id, TransactionMode transactionMode) {
+    return getNextNumber(initialValue, id);
+  }
+
+  /**
+   * Returns the next number in the numbering series based on optionValue,
+   * updating the counter in the given transaction mode.
+   *
+   * @param startValue The initial value of the counter
+   * @param id The counter id
+   * @param optionValue The option value
+   * @param transactionMode How the counter update relates to the transaction
+   * of the caller
+   * @return long
+   */
+  default long getNextNumber(long startValue, String id, String optionValue, TransactionMode transactionMode) {
+    return getNextNumber(startValue, id, optionValue);
+  }
+
+  /**
+   * Reserves a contiguous range of numbers, updating the counter in the given
+   * transaction mode.
+   *
+   * @param initialValue The initial value of the counter
+   * @param id The counter id
+   * @param count The number of values to reserve, must be at least 1
+   * @param transactionMode How the counter update relates to the transaction
+   * of the caller
+   * @return the first number of the reserved range
+   */
+  default long reserveRange(long initialValue, String id, long count, TransactionMode transactionMode) {
+    return reserveRange(initialValue, id, count);
+  }
+
+  /**
+   * Reserves a contiguous range of numbers based on optionValue, updating the
+   * counter in the given transaction mode.
+   *
+   * @param startValue The initial value of the counter
+   * @param id The counter id
+   * @param optionValue The option value
+   * @param count The number of values to reserve, must be at least 1
+   * @param transactionMode How the counter update relates to the transaction
+   * of the caller
+   * @return the first number of the reserved range
+   */
+  default long reserveRange(long startValue, String id, String optionValue, long count, TransactionMode transactionMode) {
+    return reserveRange(startValue, id, optionValue, count);
+  }
+
+  /**
+   * Creates a counter if it does not exist, without increasing it. Storages
+   * which create counters cheaply on first use need not implement this.
+   *
+   * @param initialValue The initial value of the counter
+   * @param id The counter id
+   */
+  default void ensureCounter(long initialValue, String id) {
+  }
+
+  /**
+   * Creates a counter based on optionValue if it does not exist, without
+   * increasing it.
+   *
+   * @param startValue The initial value of the counter
+   * @param id The counter id
+   * @param optionValue The option value
+   */
+  default void ensureCounter(long startValue, String id, String optionValue) {
+  }
+
 }
@@ -0,0 +1,128 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.util.List;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.tenant.TenantAdminService;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.redpill.alfresco.numbering.component.NumberingComponentImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Scheduled job creating the counters of the next period of a periodic
+ * storage shortly before the period starts, so that the first number of the
+ * period is not delayed by creating its counter
+ *
+ * The counters of all numbering components using the storage and their
+ * option values are created, also when they have not been used since
+ * startup, in the default domain and in every enabled tenant. Only one server
+ * in the cluster runs the job at a time.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class PeriodicCounterPrecreateJob implements Job {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PeriodicCounterPrecreateJob.class);
+
+  public static final String KEY_NUMBERING_STORAGE = "numberingStorage";
+  public static final String KEY_JOB_LOCK_SERVICE = "jobLockService";
+  public static final String KEY_APPLICATION_CONTEXT = "applicationContext";
+  public static final String KEY_TENANT_ADMIN_SERVICE = "tenantAdminService";
+  public static final String KEY_RETRYING_TRANSACTION_HELPER = "retryingTransactionHelper";
+
+  private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "rl-numbering-periodic-precreate");
+  private static final long LOCK_TTL = 300000L;
+
+  @Override
+  public void execute(JobExecutionContext context) throws JobExecutionException {
+    JobDataMap jobData = context.getJobDetail().getJobDataMap();
+    Object numberingStorage = jobData.get(KEY_NUMBERING_STORAGE);
+    if (!(numberingStorage instanceof PeriodicNumberingStorageImpl)) {
+      throw new JobExecutionException("Missing job data " + KEY_NUMBERING_STORAGE + " of type " + PeriodicNumberingStorageImpl.class.getName());
+    }
+    Object jobLockService = jobData.get(KEY_JOB_LOCK_SERVICE);
+    if (!(jobLockService instanceof JobLockService)) {
+      throw new JobExecutionException("Missing job data " + KEY_JOB_LOCK_SERVICE + " of type " + JobLockService.class.getName());
+    }
+    Object tenantAdminService = jobData.get(KEY_TENANT_ADMIN_SERVICE);
+    if (!(tenantAdminService instanceof TenantAdminService)) {
+      throw new JobExecutionException("Missing job data " + KEY_TENANT_ADMIN_SERVICE + " of type " + TenantAdminService.class.getName());
+    }
+    Object retryingTransactionHelper = jobData.get(KEY_RETRYING_TRANSACTION_HELPER);
+    if (!(retryingTransactionHelper instanceof RetryingTransactionHelper)) {
+      throw new JobExecutionException("Missing job data " + KEY_RETRYING_TRANSACTION_HELPER + " of type " + RetryingTransactionHelper.class.getName());
+    }
+    final PeriodicNumberingStorageImpl periodicNumberingStorage = (PeriodicNumberingStorageImpl) numberingStorage;
+    final TenantAdminService tenantService = (TenantAdminService) tenantAdminService;
+    final RetryingTransactionHelper transactionHelper = (RetryingTransactionHelper) retryingTransactionHelper;
+    final ApplicationContext applicationContext = (ApplicationContext) jobData.get(KEY_APPLICATION_CONTEXT);
+    final JobLockService lockService = (JobLockService) jobLockService;
+
+    String lockToken;
+    try {
+      lockToken = lockService.getLock(LOCK_QNAME, LOCK_TTL);
+    } catch (LockAcquisitionException e) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Counters of the next period are created by another server");
+      }
+      return;
+    }
+    try {
+      AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Integer>() {
+        @Override
+        public Integer doWork() throws Exception {
+          if (applicationContext != null) {
+            List<String> domains = transactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<List<String>>() {
+              @Override
+              public List<String> execute() throws Throwable {
+                return TenantKeys.getEnabledDomains(tenantService);
+              }
+            }, true, true);
+            for (String domain : domains) {
+              TenantUtil.runAsSystemTenant(new TenantUtil.TenantRunAsWork<Void>() {
+                @Override
+                public Void doWork() throws Exception {
+                  registerConfiguredCounters(applicationContext, periodicNumberingStorage);
+                  return null;
+                }
+              }, domain);
+            }
+          }
+          return periodicNumberingStorage.precreateNextPeriod();
+        }
+      });
+    } finally {
+      lockService.releaseLock(lockToken, LOCK_QNAME);
+    }
+  }
+
+  /**
+   * Registers the counters of the numbering components which use the storage
+   * along with their configured option values, in the current tenant
+   *
+   * @param applicationContext The context of the numbering components
+   * @param periodicNumberingStorage The storage
+   */
+  protected void registerConfiguredCounters(ApplicationContext applicationContext, PeriodicNumberingStorageImpl periodicNumberingStorage) {
+    for (NumberingComponentImpl component : applicationContext.getBeansOfType(NumberingComponentImpl.class).values()) {
+      if (component.getNumberingStorage() != periodicNumberingStorage) {
+        continue;
+      }
+      periodicNumberingStorage.registerCounter(component.getStartValue(), component.getId());
+      for (String optionValue : component.getOptionValues()) {
+        periodicNumberingStorage.registerCounter(component.getStartValue(), component.getId(), optionValue);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,269 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.time.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.alfresco.repo.tenant.TenantUtil;
+import org.redpill.alfresco.numbering.decorator.CachedDateFormat;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Store numbers in counters which reset every period, e.g. every year with
+ * the period pattern yyyy or every month with yyyy-MM. The current period is
+ * appended to the counter key of the backing storage, so that each period
+ * gets a counter of its own which starts at the initial value.
+ *
+ * The rollover is detected in memory: the formatted period is cached until
+ * the period ends and the counter key of a counter is only rebuilt when the
+ * period changes. The counters of the next period can be created ahead of
+ * time with precreateNextPeriod, see PeriodicCounterPrecreateJob, which
+ * registers the configured counters with registerCounter first. Counters are
+ * kept per tenant and the next period is created in the tenant of each
+ * counter.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class PeriodicNumberingStorageImpl implements NumberingStorage, InitializingBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PeriodicNumberingStorageImpl.class);
+
+  protected static final String DEFAULT_PERIOD_PATTERN = "yyyy";
+  protected static final String DEFAULT_PERIOD_SEPARATOR = "-";
+  protected static final long DEFAULT_PRECREATE_LEAD_TIME = 3600000L;
+
+  protected NumberingStorage numberingStorage;
+  protected String periodPattern = DEFAULT_PERIOD_PATTERN;
+  protected String periodSeparator = DEFAULT_PERIOD_SEPARATOR;
+  protected long precreateLeadTime = DEFAULT_PRECREATE_LEAD_TIME;
+  protected Clock clock = Clock.systemDefaultZone();
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+
+  protected CachedDateFormat periodFormat;
+  protected final ConcurrentMap<String, PeriodicCounter> counters = new ConcurrentHashMap<>();
+  protected final ConcurrentMap<String, PeriodicCounter> optionCounters = new ConcurrentHashMap<>();
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id) {
+    String key = counter(counters, TenantKeys.getTenantKey(id), initialValue, id, null).currentKey();
+    return numberingStorage.getNextNumber(initialValue, key);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue) {
+    String key = counter(optionCounters, TenantKeys.getTenantKey(id + "/" + optionValue), startValue, id, optionValue).currentKey();
+    return numberingStorage.getNextNumber(startValue, id, key);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    String key = counter(counters, TenantKeys.getTenantKey(id), initialValue, id, null).currentKey();
+    return numberingStorage.reserveRange(initialValue, key, count);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count) {
+    String key = counter(optionCounters, TenantKeys.getTenantKey(id + "/" + optionValue), startValue, id, optionValue).currentKey();
+    return numberingStorage.reserveRange(startValue, id, key, count);
+  }
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id, final TransactionMode transactionMode) {
+    String key = counter(counters, TenantKeys.getTenantKey(id), initialValue, id, null).currentKey();
+    return numberingStorage.getNextNumber(initialValue, key, transactionMode);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue, final TransactionMode transactionMode) {
+    String key = counter(optionCounters, TenantKeys.getTenantKey(id + "/" + optionValue), startValue, id, optionValue).currentKey();
+    return numberingStorage.getNextNumber(startValue, id, key, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count, final TransactionMode transactionMode) {
+    String key = counter(counters, TenantKeys.getTenantKey(id), initialValue, id, null).currentKey();
+    return numberingStorage.reserveRange(initialValue, key, count, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count, final TransactionMode transactionMode) {
+    String key = counter(optionCounters, TenantKeys.getTenantKey(id + "/" + optionValue), startValue, id, optionValue).currentKey();
+    return numberingStorage.reserveRange(startValue, id, key, count, transactionMode);
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    numberingStorage.ensureCounter(initialValue, counter(counters, TenantKeys.getTenantKey(id), initialValue, id, null).currentKey());
+  }
+
+  @Override
+  public void ensureCounter(final long startValue, final String id, final String optionValue) {
+    String key = counter(optionCounters, TenantKeys.getTenantKey(id + "/" + optionValue), startValue, id, optionValue).currentKey();
+    numberingStorage.ensureCounter(startValue, id, key);
+  }
+
+  /**
+   * Makes a counter of the current tenant known to precreateNextPeriod before
+   * it has been used
+   *
+   * @param initialValue The initial value of the counter
+   * @param id The counter id
+   */
+  public void registerCounter(final long initialValue, final String id) {
+    counter(counters, TenantKeys.getTenantKey(id), initialValue, id, null);
+  }
+
+  /**
+   * Makes an option counter of the current tenant known to
+   * precreateNextPeriod before it has been used
+   *
+   * @param startValue The initial value of the counter
+   * @param id The counter id
+   * @param optionValue The option value
+   */
+  public void registerCounter(final long startValue, final String id, final String optionValue) {
+    counter(optionCounters, TenantKeys.getTenantKey(id + "/" + optionValue), startValue, id, optionValue);
+  }
+
+  /**
+   * Creates the counters of the next period in the backing storage if the
+   * next period starts within the lead time. The counters which have been
+   * registered or used since startup are created, each in its own tenant.
+   *
+   * @return the number of counters created or verified
+   */
+  public int precreateNextPeriod() {
+    String currentPeriod = periodFormat.format();
+    final String nextPeriod = periodFormat.format(clock.instant().plusMillis(precreateLeadTime));
+    if (currentPeriod.equals(nextPeriod)) {
+      return 0;
+    }
+    int created = 0;
+    for (final PeriodicCounter counter : counters.values()) {
+      TenantUtil.runAsSystemTenant(new TenantUtil.TenantRunAsWork<Void>() {
+        @Override
+        public Void doWork() throws Exception {
+          numberingStorage.ensureCounter(counter.initialValue, counter.key(nextPeriod));
+          return null;
+        }
+      }, counter.domain);
+      created++;
+    }
+    for (final PeriodicCounter counter : optionCounters.values()) {
+      TenantUtil.runAsSystemTenant(new TenantUtil.TenantRunAsWork<Void>() {
+        @Override
+        public Void doWork() throws Exception {
+          numberingStorage.ensureCounter(counter.initialValue, counter.id, counter.key(nextPeriod));
+          return null;
+        }
+      }, counter.domain);
+      created++;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Precreated " + created + " counters for period " + nextPeriod);
+    }
+    return created;
+  }
+
+  protected PeriodicCounter counter(ConcurrentMap<String, PeriodicCounter> counters, String mapKey, final long initialValue, final String id, final String optionValue) {
+    PeriodicCounter counter = counters.get(mapKey);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(mapKey, key -> new PeriodicCounter(initialValue, id, optionValue));
+    }
+    return counter;
+  }
+
+  /**
+   * A counter which has been used since startup along with the key of its
+   * current period
+   */
+  protected class PeriodicCounter {
+
+    private final long initialValue;
+    private final String domain;
+    private final String id;
+    private final String optionValue;
+    private volatile CurrentKey current;
+
+    protected PeriodicCounter(long initialValue, String id, String optionValue) {
+      this.initialValue = initialValue;
+      this.domain = TenantKeys.getCurrentDomain();
+      this.id = id;
+      this.optionValue = optionValue;
+    }
+
+    /**
+     * The formatted period is the same String instance until the period
+     * ends, so the key is only rebuilt on rollover
+     *
+     * @return the counter key of the current period
+     */
+    protected String currentKey() {
+      String period = periodFormat.format();
+      CurrentKey currentKey = current;
+      if (currentKey == null || currentKey.period != period) {
+        if (currentKey != null && !currentKey.period.equals(period)) {
+          metrics.increment(NumberingMetrics.COUNTER_PERIOD_ROLLOVERS, id);
+        }
+        currentKey = new CurrentKey(period, key(period));
+        current = currentKey;
+      }
+      return currentKey.key;
+    }
+
+    protected String key(String period) {
+      return (optionValue == null ? id : optionValue) + periodSeparator + period;
+    }
+  }
+
+  private static class CurrentKey {
+
+    private final String period;
+    private final String key;
+
+    private CurrentKey(String period, String key) {
+      this.period = period;
+      this.key = key;
+    }
+  }
+
+  public void setNumberingStorage(NumberingStorage numberingStorage) {
+    this.numberingStorage = numberingStorage;
+  }
+
+  public void setPeriodPattern(String periodPattern) {
+    this.periodPattern = periodPattern;
+  }
+
+  public void setPeriodSeparator(String periodSeparator) {
+    this.periodSeparator = periodSeparator;
+  }
+
+  public void setPrecreateLeadTime(long precreateLeadTime) {
+    this.precreateLeadTime = precreateLeadTime;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(numberingStorage, "you must provide a numbering storage");
+    Assert.hasText(periodPattern, "you must provide a period pattern");
+    Assert.notNull(periodSeparator, "you must provide a period separator");
+    Assert.notNull(clock, "you must provide a clock");
+    Assert.notNull(metrics, "you must provide metrics");
+    Assert.isTrue(precreateLeadTime >= 0, "precreateLeadTime must not be negative");
+    periodFormat = new CachedDateFormat(periodPattern, clock);
+  }
+
+}
@@ -0,0 +1,403 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Store numbers in sharded counters so that cluster members do not update the
+ * same counter. Each member leases one of a fixed number of shards through the
+ * job lock service and only increases the counters of its own shard in the
+ * backing storage.
+ *
+ * A shard counter is cut into segments of segmentSize values. When a shard
+ * starts a segment it reserves the whole segment from its shard counter and
+ * the next block of segmentSize numbers from the counter of the series in the
+ * backing storage, so only shards in use take numbers and the series stays
+ * dense however many members there are. The numbers of the block are then
+ * handed out from memory, so the backing storage is only updated once per
+ * segment. The block of each segment is persisted as an attribute. Numbers are
+ * unique but not gapless, a range which does not fit in the rest of a segment
+ * skips it and the rest of the current segments is skipped after a restart or
+ * when another member takes a shard over. Numbers are only roughly increasing
+ * across the cluster.
+ *
+ * Leases are persisted as job locks and refreshed while the member is alive.
+ * Members lease the lowest free shard, so the shard of a member that leaves is
+ * claimed by the next member that needs one and its counters continue where
+ * they stopped. The segment size must never be changed for an existing
+ * series. A lease is shared by all tenants, the blocks of a tenant are kept
+ * under keys qualified by its tenant domain.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class ShardedNumberingStorageImpl implements NumberingStorage, InitializingBean, DisposableBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedNumberingStorageImpl.class);
+
+  public static final String ATTR_SHARD_BLOCK = "RL_NUMBERING_SHARD_BLOCK";
+
+  protected static final String SHARD_SEPARATOR = "#";
+  protected static final int DEFAULT_SHARDS = 8;
+  protected static final long DEFAULT_SEGMENT_SIZE = 1000L;
+  protected static final long DEFAULT_LEASE_TTL = 30000L;
+
+  protected NumberingStorage numberingStorage;
+  protected JobLockService jobLockService;
+  protected AttributeService attributeService;
+  protected RetryingTransactionHelper retryingTransactionHelper;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+  protected int shards = DEFAULT_SHARDS;
+  protected long segmentSize = DEFAULT_SEGMENT_SIZE;
+  protected long leaseTTL = DEFAULT_LEASE_TTL;
+  protected String name = "default";
+
+  private volatile ShardLease lease;
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id) {
+    return reserveRange(initialValue, id, 1);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue) {
+    return reserveRange(startValue, id, optionValue, 1);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    assertRangeCount(count);
+    ShardLease current = getLease();
+    final String shardKey = shardKey(id, current.shard);
+    return reserveInBlock(current, id, TenantKeys.getTenantKey(shardKey), count, new ShardReservation() {
+      @Override
+      public long reserve(long count) {
+        return numberingStorage.reserveRange(0, shardKey, count, TransactionMode.REQUIRES_NEW);
+      }
+    }, seriesReservation(initialValue, id));
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count) {
+    assertRangeCount(count);
+    ShardLease current = getLease();
+    final String shardKey = shardKey(optionValue, current.shard);
+    return reserveInBlock(current, id, TenantKeys.getTenantKey(id + "/" + shardKey), count, new ShardReservation() {
+      @Override
+      public long reserve(long count) {
+        return numberingStorage.reserveRange(0, id, shardKey, count, TransactionMode.REQUIRES_NEW);
+      }
+    }, seriesReservation(startValue, id, optionValue));
+  }
+
+  /**
+   * @return reserves blocks of the counter of a series
+   */
+  protected ShardReservation seriesReservation(final long initialValue, final String id) {
+    return new ShardReservation() {
+      @Override
+      public long reserve(long count) {
+        return numberingStorage.reserveRange(initialValue, id, count, TransactionMode.REQUIRES_NEW);
+      }
+    };
+  }
+
+  /**
+   * @return reserves blocks of the option counter of a series
+   */
+  protected ShardReservation seriesReservation(final long startValue, final String id, final String optionValue) {
+    return new ShardReservation() {
+      @Override
+      public long reserve(long count) {
+        return numberingStorage.reserveRange(startValue, id, optionValue, count, TransactionMode.REQUIRES_NEW);
+      }
+    };
+  }
+
+  /**
+   * Reserves a range of the current block of a shard counter, starting the
+   * next segment when the range does not fit in the rest of the block
+   *
+   * @param current The lease of the shard
+   * @param id The counter id
+   * @param blockKey The shard counter, qualified by the tenant domain
+   * @param count The number of values to reserve
+   * @param shardReservation Reserves the values of a segment of the shard
+   * counter
+   * @param seriesReservation Reserves a block of the series
+   * @return the first reserved number of the series
+   */
+  protected long reserveInBlock(ShardLease current, String id, String blockKey, long count, ShardReservation shardReservation, ShardReservation seriesReservation) {
+    while (true) {
+      ShardBlock block = current.blocks.get(blockKey);
+      if (block != null) {
+        long offset = block.reserve(count, segmentSize);
+        if (offset >= 0) {
+          metrics.increment(NumberingMetrics.COUNTER_STORAGE_LOCAL, id);
+          return block.start + offset;
+        }
+      }
+      nextBlock(current, id, blockKey, block, shardReservation, seriesReservation);
+    }
+  }
+
+  /**
+   * Reserves values of a counter in the backing storage
+   */
+  protected interface ShardReservation {
+
+    /**
+     * @param count The number of values to reserve
+     * @return the first reserved value
+     */
+    long reserve(long count);
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    numberingStorage.ensureCounter(0, shardKey(id, getLease().shard));
+  }
+
+  @Override
+  public void ensureCounter(final long startValue, final String id, final String optionValue) {
+    numberingStorage.ensureCounter(0, id, shardKey(optionValue, getLease().shard));
+  }
+
+  protected void assertRangeCount(long count) {
+    if (count > segmentSize) {
+      throw new IllegalArgumentException("Cannot reserve " + count + " numbers in one range, the segment size is " + segmentSize);
+    }
+  }
+
+  protected String shardKey(String key, int shard) {
+    return key + SHARD_SEPARATOR + shard;
+  }
+
+  /**
+   * Start the next segment of a shard counter once its current block is used
+   * up. The values of the segment are reserved from the shard counter in the
+   * backing storage in one go, the next block of the series is reserved and
+   * persisted for the segment in a transaction of its own and the block of
+   * the segment before the previous one is removed. Values of the segment are
+   * then handed out from memory.
+   *
+   * @param current The lease of the shard
+   * @param id The counter id
+   * @param blockKey The shard counter, qualified by the tenant domain
+   * @param used The block that is used up, null if none
+   * @param shardReservation Reserves the values of a segment of the shard
+   * counter
+   * @param seriesReservation Reserves a block of the series
+   */
+  protected synchronized void nextBlock(final ShardLease current, final String id, final String blockKey, final ShardBlock used, final ShardReservation shardReservation, final ShardReservation seriesReservation) {
+    if (current.blocks.get(blockKey) != used) {
+      //Another thread started the next segment
+      return;
+    }
+    long timerStart = metrics.start();
+    //Segments are reserved whole, so the first value divided by the segment size numbers the segment whether the backing storage starts at 0 or 1
+    final long segment = shardReservation.reserve(segmentSize) / segmentSize;
+    final String attributeKey = name + SHARD_SEPARATOR + blockKey;
+    long start = retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+      @Override
+      public Long execute() throws Throwable {
+        long start = seriesReservation.reserve(segmentSize);
+        attributeService.setAttribute(start, ATTR_SHARD_BLOCK, attributeKey, segment);
+        if (segment >= 2) {
+          attributeService.removeAttribute(ATTR_SHARD_BLOCK, attributeKey, segment - 2);
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Segment " + segment + " of " + blockKey + " issues the numbers from " + start);
+        }
+        return start;
+      }
+    }, false, true);
+    metrics.stop(NumberingMetrics.TIMER_STORAGE_BLOCK, id, timerStart);
+    current.blocks.put(blockKey, new ShardBlock(segment, start));
+  }
+
+  /**
+   * The block of the series issued by a segment of a shard counter, and the
+   * offset of the next number of the block
+   */
+  protected static class ShardBlock {
+
+    private final long segment;
+    private final long start;
+    private final AtomicLong next = new AtomicLong();
+
+    protected ShardBlock(long segment, long start) {
+      this.segment = segment;
+      this.start = start;
+    }
+
+    /**
+     * @param count The number of values to reserve
+     * @param size The size of the block
+     * @return the offset of the first reserved value, -1 if the range does
+     * not fit in the rest of the block
+     */
+    protected long reserve(long count, long size) {
+      while (true) {
+        long offset = next.get();
+        if (offset + count > size) {
+          return -1;
+        }
+        if (next.compareAndSet(offset, offset + count)) {
+          return offset;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the shard leased by this member, leasing one if needed
+   */
+  protected ShardLease getLease() {
+    ShardLease current = lease;
+    if (current != null && current.active) {
+      return current;
+    }
+    synchronized (this) {
+      current = lease;
+      if (current == null || !current.active) {
+        current = leaseShard();
+        lease = current;
+      }
+      return current;
+    }
+  }
+
+  /**
+   * Lease the lowest free shard, so that the shards of members that left are
+   * taken over before new shards are started
+   *
+   * @return ShardLease
+   */
+  protected ShardLease leaseShard() {
+    for (int shard = 0; shard < shards; shard++) {
+      ShardLease shardLease = new ShardLease(shard);
+      try {
+        jobLockService.getLock(shardLease.lockQName, leaseTTL, shardLease);
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Leased numbering shard " + shard + " of " + shards + " for " + name);
+        }
+        return shardLease;
+      } catch (LockAcquisitionException e) {
+        if (LOG.isTraceEnabled()) {
+          LOG.trace("Numbering shard " + shard + " of " + name + " is leased by another member");
+        }
+      }
+    }
+    throw new AlfrescoRuntimeException("All " + shards + " numbering shards of " + name + " are leased, increase the number of shards");
+  }
+
+  /**
+   * Lease of a shard, refreshed by the job lock service until released
+   */
+  protected class ShardLease implements JobLockService.JobLockRefreshCallback {
+
+    private final int shard;
+    private final QName lockQName;
+    private final ConcurrentMap<String, ShardBlock> blocks = new ConcurrentHashMap<>();
+    private volatile boolean active = true;
+
+    protected ShardLease(int shard) {
+      this.shard = shard;
+      this.lockQName = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, ATTR_ID + "_SHARD_" + name + "_" + shard);
+    }
+
+    @Override
+    public boolean isActive() {
+      return active;
+    }
+
+    @Override
+    public void lockReleased() {
+      if (active) {
+        LOG.warn("Lost the lease of numbering shard " + shard + " of " + name + ", a new shard will be leased");
+      }
+      active = false;
+    }
+  }
+
+  public void setNumberingStorage(NumberingStorage numberingStorage) {
+    this.numberingStorage = numberingStorage;
+  }
+
+  public void setJobLockService(JobLockService jobLockService) {
+    this.jobLockService = jobLockService;
+  }
+
+  public void setAttributeService(AttributeService attributeService) {
+    this.attributeService = attributeService;
+  }
+
+  public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+    this.retryingTransactionHelper = retryingTransactionHelper;
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setShards(int shards) {
+    this.shards = shards;
+  }
+
+  public void setSegmentSize(long segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  public void setLeaseTTL(long leaseTTL) {
+    this.leaseTTL = leaseTTL;
+  }
+
+  /**
+   * @param name Name of the series of shards, part of the lease lock names
+   */
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(numberingStorage, "you must provide a numbering storage");
+    Assert.notNull(jobLockService, "you must provide an instance of JobLockService");
+    Assert.notNull(attributeService, "you must provide an instance of AttributeService");
+    Assert.notNull(retryingTransactionHelper, "you must provide an instance of RetryingTransactionHelper");
+    Assert.hasText(name, "you must provide a name");
+    Assert.notNull(metrics, "you must provide metrics");
+    Assert.isTrue(shards > 0, "shards must be at least 1");
+    Assert.isTrue(segmentSize > 0, "segmentSize must be at least 1");
+    Assert.isTrue(leaseTTL > 0, "leaseTTL must be positive");
+  }
+
+  /**
+   * Stops refreshing the lease so that another member can take over the
+   * shard
+   */
+  @Override
+  public void destroy() throws Exception {
+    ShardLease current = lease;
+    if (current != null) {
+      current.active = false;
+    }
+  }
+
+}
@@ -0,0 +1,271 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import javax.sql.DataSource;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.redpill.alfresco.numbering.metrics.NoopNumberingMetrics;
+import org.redpill.alfresco.numbering.metrics.NumberingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.util.Assert;
+
+/**
+ * Store numbers in a dedicated counter table on the repository datasource.
+ * Each counter is a row keyed by tenant domain, counter id and option value
+ * which is increased with a single atomic statement. Supported databases are
+ * PostgreSQL and H2.
+ *
+ * The dialect is detected and the counter table created when the storage is
+ * first used, so nothing touches the database if the storage is configured
+ * but not used by any numbering component.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class SqlNumberingStorageImpl implements NumberingStorage, InitializingBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqlNumberingStorageImpl.class);
+
+  public static final String DIALECT_POSTGRESQL = "postgresql";
+  public static final String DIALECT_H2 = "h2";
+  protected static final String SCHEMA_SCRIPT = "alfresco/module/alfresco-numbering/dbscripts/%s/rl-numbering-schema.sql";
+
+  /**
+   * The option value used for counters without option value, part of the
+   * primary key and can therefore not be null
+   */
+  protected static final String NO_OPTION_VALUE = "";
+
+  protected static final String SQL_UPSERT_POSTGRESQL = "INSERT INTO rl_numbering_counter (tenant_domain, counter_id, option_value, counter_value) VALUES (?, ?, ?, ?) "
+          + "ON CONFLICT (tenant_domain, counter_id, option_value) DO UPDATE SET counter_value = rl_numbering_counter.counter_value + ? RETURNING counter_value";
+  protected static final String SQL_SELECT_FOR_UPDATE = "SELECT counter_value FROM rl_numbering_counter WHERE tenant_domain = ? AND counter_id = ? AND option_value = ? FOR UPDATE";
+  protected static final String SQL_UPDATE = "UPDATE rl_numbering_counter SET counter_value = ? WHERE tenant_domain = ? AND counter_id = ? AND option_value = ?";
+  protected static final String SQL_INSERT = "INSERT INTO rl_numbering_counter (tenant_domain, counter_id, option_value, counter_value) VALUES (?, ?, ?, ?)";
+  protected static final String SQL_INSERT_IF_ABSENT_POSTGRESQL = "INSERT INTO rl_numbering_counter (tenant_domain, counter_id, option_value, counter_value) VALUES (?, ?, ?, ?) "
+          + "ON CONFLICT (tenant_domain, counter_id, option_value) DO NOTHING";
+  protected static final String SQL_SELECT = "SELECT counter_value FROM rl_numbering_counter WHERE tenant_domain = ? AND counter_id = ? AND option_value = ?";
+
+  protected DataSource dataSource;
+  protected RetryingTransactionHelper retryingTransactionHelper;
+  protected JdbcTemplate jdbcTemplate;
+  protected String dialect;
+  protected boolean createSchema = true;
+  protected NumberingMetrics metrics = new NoopNumberingMetrics();
+  private volatile boolean initialized = false;
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id) {
+    return reserveRange(initialValue, id, NO_OPTION_VALUE, 1);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue) {
+    return reserveRange(startValue, id, optionValue, 1);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count) {
+    return reserveRange(initialValue, id, NO_OPTION_VALUE, count);
+  }
+
+  @Override
+  public long getNextNumber(final long initialValue, final String id, final TransactionMode transactionMode) {
+    return reserveRange(initialValue, id, NO_OPTION_VALUE, 1, transactionMode);
+  }
+
+  @Override
+  public long getNextNumber(final long startValue, final String id, final String optionValue, final TransactionMode transactionMode) {
+    return reserveRange(startValue, id, optionValue, 1, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long initialValue, final String id, final long count, final TransactionMode transactionMode) {
+    return reserveRange(initialValue, id, NO_OPTION_VALUE, count, transactionMode);
+  }
+
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count) {
+    return reserveRange(startValue, id, optionValue, count, TransactionMode.REQUIRES_NEW);
+  }
+
+  /**
+   * The counter row stays locked until the counter transaction commits, which
+   * is the transaction of the caller unless the mode is REQUIRES_NEW
+   */
+  @Override
+  public long reserveRange(final long startValue, final String id, final String optionValue, final long count, final TransactionMode transactionMode) {
+    Assert.isTrue(count > 0, "Count must be at least 1");
+    ensureInitialized();
+    final String domain = TenantKeys.getCurrentDomain();
+    long start = metrics.start();
+    Long firstValue = retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Long>() {
+      private boolean retry = false;
+
+      @Override
+      public Long execute() throws Throwable {
+        if (retry) {
+          metrics.increment(NumberingMetrics.COUNTER_TRANSACTION_RETRIES, id);
+        }
+        retry = true;
+        long lastValue = increaseCounter(startValue, domain, id, optionValue, count);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Counter " + id + "/" + optionValue + " increased to " + lastValue);
+        }
+        return lastValue - count + 1;
+      }
+    }, false, !transactionMode.joinsTransaction());
+    metrics.stop(NumberingMetrics.TIMER_STORAGE_TRANSACTION, id, start);
+    return firstValue;
+  }
+
+  @Override
+  public void ensureCounter(final long initialValue, final String id) {
+    ensureCounter(initialValue, id, NO_OPTION_VALUE);
+  }
+
+  @Override
+  public void ensureCounter(final long startValue, final String id, final String optionValue) {
+    ensureInitialized();
+    final String domain = TenantKeys.getCurrentDomain();
+    retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+      @Override
+      public Void execute() throws Throwable {
+        //The stored value is the last number issued, the first number of the counter is still startValue
+        if (DIALECT_POSTGRESQL.equals(dialect)) {
+          jdbcTemplate.update(SQL_INSERT_IF_ABSENT_POSTGRESQL, domain, id, optionValue, startValue - 1);
+        } else if (jdbcTemplate.queryForList(SQL_SELECT, Long.class, domain, id, optionValue).isEmpty()) {
+          // A concurrent insert fails on the primary key and the transaction is retried
+          jdbcTemplate.update(SQL_INSERT, domain, id, optionValue, startValue - 1);
+        }
+        return null;
+      }
+    }, false, true);
+  }
+
+  /**
+   * Increase the counter row, creating it if it does not exist. A new counter
+   * starts at initialValue.
+   *
+   * @param initialValue the first number of a new counter
+   * @param domain the tenant domain
+   * @param id the counter id
+   * @param optionValue the option value
+   * @param count the amount to increase the counter with
+   * @return the last number of the reserved range
+   */
+  protected long increaseCounter(final long initialValue, final String domain, final String id, final String optionValue, final long count) {
+    if (DIALECT_POSTGRESQL.equals(dialect)) {
+      return jdbcTemplate.queryForObject(SQL_UPSERT_POSTGRESQL, Long.class, domain, id, optionValue, initialValue + count - 1, count);
+    }
+    List<Long> values = jdbcTemplate.queryForList(SQL_SELECT_FOR_UPDATE, Long.class, domain, id, optionValue);
+    if (values.isEmpty()) {
+      // A concurrent insert fails on the primary key and the transaction is retried
+      jdbcTemplate.update(SQL_INSERT, domain, id, optionValue, initialValue + count - 1);
+      return initialValue + count - 1;
+    }
+    long lastValue = values.get(0) + count;
+    jdbcTemplate.update(SQL_UPDATE, lastValue, domain, id, optionValue);
+    return lastValue;
+  }
+
+  /**
+   * Detect the dialect from the database product name
+   *
+   * @return the dialect
+   */
+  protected String detectDialect() {
+    return jdbcTemplate.execute(new ConnectionCallback<String>() {
+      @Override
+      public String doInConnection(Connection connection) throws SQLException, DataAccessException {
+        String productName = connection.getMetaData().getDatabaseProductName();
+        if ("PostgreSQL".equalsIgnoreCase(productName)) {
+          return DIALECT_POSTGRESQL;
+        } else if ("H2".equalsIgnoreCase(productName)) {
+          return DIALECT_H2;
+        }
+        throw new AlfrescoRuntimeException("Unsupported database for numbering storage: " + productName);
+      }
+    });
+  }
+
+  /**
+   * Detects the dialect and creates the counter table on first use, adding
+   * the tenant column to tables created without it. The table is created in a
+   * transaction of its own, so that it is not rolled back with the
+   * transaction of the caller.
+   */
+  protected void ensureInitialized() {
+    if (initialized) {
+      return;
+    }
+    synchronized (this) {
+      if (initialized) {
+        return;
+      }
+      retryingTransactionHelper.doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+        @Override
+        public Void execute() throws Throwable {
+          if (dialect == null || dialect.isEmpty()) {
+            dialect = detectDialect();
+          }
+          if (createSchema) {
+            String script = String.format(SCHEMA_SCRIPT, dialect);
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Creating numbering counter table using " + script);
+            }
+            new ResourceDatabasePopulator(new ClassPathResource(script)).execute(dataSource);
+          }
+          return null;
+        }
+      }, false, true);
+      initialized = true;
+    }
+  }
+
+  public void setMetrics(NumberingMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void setDataSource(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  public void setRetryingTransactionHelper(RetryingTransactionHelper retryingTransactionHelper) {
+    this.retryingTransactionHelper = retryingTransactionHelper;
+  }
+
+  /**
+   * @param dialect postgresql or h2, detected from the datasource if empty
+   */
+  public void setDialect(String dialect) {
+    this.dialect = dialect;
+  }
+
+  /**
+   * @param createSchema set to true to create the counter table on first use
+   * if it does not exist
+   */
+  public void setCreateSchema(boolean createSchema) {
+    this.createSchema = createSchema;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(dataSource);
+    Assert.notNull(retryingTransactionHelper);
+    Assert.notNull(metrics);
+    if (dialect != null && !dialect.isEmpty()) {
+      Assert.isTrue(DIALECT_POSTGRESQL.equals(dialect) || DIALECT_H2.equals(dialect), "Unsupported dialect: " + dialect);
+    }
+    jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+}
@@ -0,0 +1,75 @@
+package org.redpill.alfresco.numbering.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.alfresco.repo.tenant.Tenant;
+import org.alfresco.repo.tenant.TenantAdminService;
+import org.alfresco.repo.tenant.TenantService;
+import org.alfresco.repo.tenant.TenantUtil;
+
+/**
+ * Qualifies in-memory keys by the tenant domain, so that the counters and
+ * caches of one tenant are never shared with another
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public final class TenantKeys {
+
+  private TenantKeys() {
+  }
+
+  /**
+   * @return the domain of the current tenant, the default domain if none
+   */
+  public static String getCurrentDomain() {
+    String domain = TenantUtil.getCurrentDomain();
+    return domain == null ? TenantService.DEFAULT_DOMAIN : domain;
+  }
+
+  /**
+   * Qualify a key by the domain of the current tenant
+   *
+   * @param key the key
+   * @return the key, prefixed by the tenant domain unless in the default
+   * domain
+   */
+  public static String getTenantKey(String key) {
+    return getTenantKey(getCurrentDomain(), key);
+  }
+
+  /**
+   * Qualify a key by a tenant domain
+   *
+   * @param domain the tenant domain
+   * @param key the key
+   * @return the key, prefixed by the tenant domain unless in the default
+   * domain
+   */
+  public static String getTenantKey(String domain, String key) {
+    if (domain == null || TenantService.DEFAULT_DOMAIN.equals(domain)) {
+      return key;
+    }
+    return TenantService.SEPARATOR + domain + TenantService.SEPARATOR + key;
+  }
+
+  /**
+   * The domains background work runs in, one at a time. Must be called in a
+   * transaction.
+   *
+   * @param tenantAdminService the tenant admin service
+   * @return the default domain followed by the domains of the enabled tenants
+   */
+  public static List<String> getEnabledDomains(TenantAdminService tenantAdminService) {
+    List<String> domains = new ArrayList<>();
+    domains.add(TenantService.DEFAULT_DOMAIN);
+    if (tenantAdminService.isEnabled()) {
+      for (Tenant tenant : tenantAdminService.getAllTenants()) {
+        if (tenant.isEnabled()) {
+          domains.add(tenant.getTenantDomain());
+        }
+      }
+    }
+    return domains;
+  }
+
+}
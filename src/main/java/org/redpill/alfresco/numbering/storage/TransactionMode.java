@@ -0,0 +1,45 @@
+package org.redpill.alfresco.numbering.storage;
+
+/**
+ * How a counter update relates to the transaction of the caller. Storages
+ * which keep their counters outside of the repository transactions, or hand
+ * out numbers reserved in advance, ignore the mode.
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public enum TransactionMode {
+
+  /**
+   * The counter is updated and committed in a transaction of its own, while
+   * holding the counter lock. Numbers are unique across the cluster and the
+   * counter is only locked for a short time, but a number is lost when the
+   * transaction of the caller rolls back.
+   */
+  REQUIRES_NEW,
+
+  /**
+   * The counter is updated in the transaction of the caller, saving a
+   * connection and a commit per number. Numbers are unique and gapless since
+   * a rolled back transaction also rolls back its counter update, but the
+   * counter stays locked in the database until the caller commits. Callers
+   * numbering the same series concurrently fail with a concurrency failure
+   * and are retried by their transaction helper, so this mode only suits
+   * series with little contention.
+   */
+  JOIN,
+
+  /**
+   * Like JOIN, but the numbering policies number their nodes just before the
+   * transaction commits, so that the counter is locked for as short a time as
+   * possible. Numbers are not visible on the nodes until then.
+   */
+  DEFERRED;
+
+  /**
+   * @return true if the counter is updated in the transaction of the caller
+   */
+  public boolean joinsTransaction() {
+    return this != REQUIRES_NEW;
+  }
+
+}
@@ -0,0 +1,18 @@
+--
+-- Counter table for org.redpill.alfresco.numbering.storage.SqlNumberingStorageImpl
+--
+CREATE TABLE IF NOT EXISTS rl_numbering_counter (
+  tenant_domain VARCHAR(255) NOT NULL DEFAULT '',
+  counter_id VARCHAR(255) NOT NULL,
+  option_value VARCHAR(255) NOT NULL DEFAULT '',
+  counter_value BIGINT NOT NULL,
+  PRIMARY KEY (tenant_domain, counter_id, option_value)
+);
+
+--
+-- Tables created before counters were kept per tenant get the tenant column,
+-- existing counters belong to the default domain
+--
+ALTER TABLE rl_numbering_counter ADD COLUMN IF NOT EXISTS tenant_domain VARCHAR(255) NOT NULL DEFAULT '';
+ALTER TABLE rl_numbering_counter DROP PRIMARY KEY;
+ALTER TABLE rl_numbering_counter ADD PRIMARY KEY (tenant_domain, counter_id, option_value);
@@ -0,0 +1,271 @@
+package org.redpill.alfresco.numbering.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replay, compaction and block continuation of the journaled storage, which
+ * must never hand out a number twice
+ *
+ * @author Marcus Svartmark - Redpill Linpro AB
+ */
+public class JournalNumberingStorageImplTest {
+
+  private static final String ID = "journalTest";
+
+  private File directory;
+  private String journalFile;
+  private MemoryNumberingStorage backingStorage;
+  private final List<JournalNumberingStorageImpl> storages = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("rl-numbering-journal").toFile();
+    journalFile = new File(directory, "journal.dat").getPath();
+    backingStorage = new MemoryNumberingStorage();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (JournalNumberingStorageImpl storage : storages) {
+      storage.destroy();
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReplayContinuesWithinBlock() throws Exception {
+    JournalNumberingStorageImpl storage = createStorage(100, 1024 * 1024);
+    for (long expected = 1; expected <= 10; expected++) {
+      assertEquals(expected, storage.getNextNumber(1, ID));
+    }
+    restart(storage);
+
+    storage = createStorage(100, 1024 * 1024);
+    assertEquals(11, storage.getNextNumber(1, ID));
+    assertEquals("a restart must not reserve a new block", 1, backingStorage.reservations.size());
+  }
+
+  @Test
+  public void testBlocksContinueAcrossBoundariesAndRestarts() throws Exception {
+    Set<Long> issued = new HashSet<>();
+    JournalNumberingStorageImpl storage = createStorage(10, 1024 * 1024);
+    long previous = 0;
+    for (int i = 0; i < 35; i++) {
+      long number = storage.getNextNumber(1, ID, "option");
+      assertTrue("numbers must increase", number > previous);
+      assertTrue("number " + number + " issued twice", issued.add(number));
+      previous = number;
+    }
+    restart(storage);
+
+    storage = createStorage(10, 1024 * 1024);
+    for (int i = 0; i < 35; i++) {
+      long number = storage.getNextNumber(1, ID, "option");
+      assertTrue("numbers must increase after a restart", number > previous);
+      assertTrue("number " + number + " issued twice", issued.add(number));
+      previous = number;
+    }
+    for (TransactionMode transactionMode : backingStorage.transactionModes) {
+      assertEquals(TransactionMode.REQUIRES_NEW, transactionMode);
+    }
+  }
+
+  @Test
+  public void testReplayAfterCompaction() throws Exception {
+    JournalNumberingStorageImpl storage = createStorage(1000, 2048);
+    long[] last = new long[3];
+    for (int i = 0; i < 200; i++) {
+      for (int counter = 0; counter < last.length; counter++) {
+        last[counter] = storage.getNextNumber(1, ID + counter);
+      }
+    }
+    assertEquals(200, last[0]);
+    restart(storage);
+
+    storage = createStorage(1000, 2048);
+    for (int counter = 0; counter < last.length; counter++) {
+      assertEquals(last[counter] + 1, storage.getNextNumber(1, ID + counter));
+    }
+    assertEquals("compaction must not reserve new blocks", 3, backingStorage.reservations.size());
+  }
+
+  @Test
+  public void testFailurePartwayThroughCompaction() throws Exception {
+    Set<Long> issued = new HashSet<>();
+    FailingJournalNumberingStorage storage = new FailingJournalNumberingStorage();
+    configure(storage, 1000, 2048);
+    storage.failCompaction = true;
+    boolean failed = false;
+    for (int i = 0; i < 200 && !failed; i++) {
+      for (int counter = 0; counter < 3; counter++) {
+        try {
+          assertTrue(issued.add(storage.getNextNumber(1, ID + counter) * 10 + counter));
+        } catch (IllegalStateException e) {
+          failed = true;
+        }
+      }
+    }
+    assertTrue("compaction should have failed", failed);
+    assertFalse("a failed compaction must be cleaned up", new File(journalFile + JournalNumberingStorageImpl.COMPACT_SUFFIX).exists());
+
+    //The journal was left as it was and the storage keeps working
+    for (int i = 0; i < 100; i++) {
+      for (int counter = 0; counter < 3; counter++) {
+        assertTrue("number issued twice", issued.add(storage.getNextNumber(1, ID + counter) * 10 + counter));
+      }
+    }
+    restart(storage);
+
+    JournalNumberingStorageImpl restarted = createStorage(1000, 2048);
+    for (int i = 0; i < 100; i++) {
+      for (int counter = 0; counter < 3; counter++) {
+        assertTrue("number issued twice after restart", issued.add(restarted.getNextNumber(1, ID + counter) * 10 + counter));
+      }
+    }
+  }
+
+  @Test
+  public void testCrashPartwayThroughCompaction() throws Exception {
+    Set<Long> issued = new HashSet<>();
+    FailingJournalNumberingStorage storage = new FailingJournalNumberingStorage();
+    configure(storage, 1000, 2048);
+    storage.failCompaction = true;
+    try {
+      for (int i = 0; i < 200; i++) {
+        for (int counter = 0; counter < 3; counter++) {
+          assertTrue(issued.add(storage.getNextNumber(1, ID + counter) * 10 + counter));
+        }
+      }
+      fail("compaction should have failed");
+    } catch (IllegalStateException e) {
+      //Stop as if the server crashed, leaving the half written compacted journal behind
+    }
+    Files.write(new File(journalFile + JournalNumberingStorageImpl.COMPACT_SUFFIX).toPath(), new byte[]{1, 2, 3});
+    restart(storage);
+
+    JournalNumberingStorageImpl restarted = createStorage(1000, 2048);
+    for (int i = 0; i < 100; i++) {
+      for (int counter = 0; counter < 3; counter++) {
+        assertTrue("number issued twice after restart", issued.add(restarted.getNextNumber(1, ID + counter) * 10 + counter));
+      }
+    }
+  }
+
+  private JournalNumberingStorageImpl createStorage(long blockSize, long journalSize) throws Exception {
+    JournalNumberingStorageImpl storage = new JournalNumberingStorageImpl();
+    configure(storage, blockSize, journalSize);
+    return storage;
+  }
+
+  private void configure(JournalNumberingStorageImpl storage, long blockSize, long journalSize) throws Exception {
+    storage.setNumberingStorage(backingStorage);
+    storage.setJournalFile(journalFile);
+    storage.setJournalSize(journalSize);
+    storage.setBlockSize(blockSize);
+    storage.afterPropertiesSet();
+    storages.add(storage);
+  }
+
+  private void restart(JournalNumberingStorageImpl storage) throws Exception {
+    storage.destroy();
+    storages.remove(storage);
+  }
+
+  /**
+   * Fails the second record written by the first compaction
+   */
+  private static class FailingJournalNumberingStorage extends JournalNumberingStorageImpl {
+
+    private volatile boolean failCompaction = false;
+    private boolean compacting = false;
+    private int compactedRecords = 0;
+
+    @Override
+    protected void compact() throws java.io.IOException {
+      compacting = true;
+      try {
+        super.compact();
+      } finally {
+        compacting = false;
+      }
+    }
+
+    @Override
+    protected void writeRecord(MappedByteBuffer buffer, byte type, byte[] keyBytes, long a, long b) {
+      if (compacting && failCompaction && ++compactedRecords == 2) {
+        failCompaction = false;
+        throw new IllegalStateException("Simulated failure while compacting");
+      }
+      super.writeRecord(buffer, type, keyBytes, a, b);
+    }
+  }
+
+  /**
+   * Backing storage keeping its counters in memory, the first number of a
+   * counter is its initial value
+   */
+  private static class MemoryNumberingStorage implements NumberingStorage {
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final List<String> reservations = new CopyOnWriteArrayList<>();
+    private final List<TransactionMode> transactionModes = new CopyOnWriteArrayList<>();
+
+    @Override
+    public long getNextNumber(long initialValue, String id) {
+      return reserveRange(initialValue, id, 1);
+    }
+
+    @Override
+    public long getNextNumber(long startValue, String id, String optionValue) {
+      return reserveRange(startValue, id, optionValue, 1);
+    }
+
+    @Override
+    public long reserveRange(long initialValue, String id, long count) {
+      reservations.add(id);
+      return counters.computeIfAbsent(id, key -> new AtomicLong(initialValue)).getAndAdd(count);
+    }
+
+    @Override
+    public long reserveRange(long startValue, String id, String optionValue, long count) {
+      return reserveRange(startValue, id + "/" + optionValue, count);
+    }
+
+    @Override
+    public long reserveRange(long initialValue, String id, long count, TransactionMode transactionMode) {
+      transactionModes.add(transactionMode);
+      return reserveRange(initialValue, id, count);
+    }
+
+    @Override
+    public long reserveRange(long startValue, String id, String optionValue, long count, TransactionMode transactionMode) {
+      transactionModes.add(transactionMode);
+      return reserveRange(startValue, id, optionValue, count);
+    }
+  }
+
+}